@@ -0,0 +1,64 @@
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A server with a number of logged in clients for the benchmarks, with no
+ * sockets involved. Every client writes to an in-memory stream that throws
+ * the bytes away, and its writer runs on a virtual thread like in the
+ * server's virtual mode, so a fan-out costs what it costs in the server:
+ * encoding the message once, queueing it for every recipient and the
+ * writers draining their queues.
+ *
+ * The journal, the offline mailbox and presence batching are turned off, so
+ * nothing touches the disk and every join is announced straight away.
+ */
+public class BenchServer {
+    private final Server server;
+    private final List<ClientHandler> clients = new ArrayList<>();
+
+    /**
+     * Starts a server and logs in clients named user0, user1, ...
+     * @param clients The number of clients.
+     * @param binary Whether the clients speak the binary protocol.
+     */
+    public BenchServer(int clients, boolean binary) {
+        System.setProperty("chat.journalDir", "");
+        System.setProperty("chat.mailboxDir", "");
+        System.setProperty("chat.presenceWindowMillis", "0");
+        this.server = new Server(null);
+        for (int i = 0; i < clients; i++) {
+            //Nothing is ever read from the clients, the benchmarks call the handlers directly
+            ClientHandler handler = binary
+                    ? new ClientHandler(new Socket(), (InputStream) null, OutputStream.nullOutputStream(), server, "user" + i)
+                    : new ClientHandler(new Socket(), (BufferedReader) null, OutputStream.nullOutputStream(), server,
+                            "user" + i);
+            if (!server.login(handler)) {
+                throw new IllegalStateException("Could not log in user" + i);
+            }
+            handler.setPresent(true);
+            Thread.ofVirtual().start(handler::writeMessages);
+            this.clients.add(handler);
+        }
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public ClientHandler getClient(int index) {
+        return clients.get(index);
+    }
+
+    /**
+     * Disconnects every client, which ends their writers.
+     */
+    public void close() {
+        for (ClientHandler handler : clients) {
+            handler.disconnect();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * How long ClientHandler.broadcastMessage takes to work out what a line from
+ * a text client is (group message, whisper or room message) and hand it on.
+ * There is only one other client, who is in the room too, so the fan-out
+ * after the parsing is as small as it gets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BroadcastMessageBenchmark {
+    @Param({"hello everyone", "@user1 hello there", "#bench hello room", "   hello with padding   "})
+    public String line;
+
+    private BenchServer server;
+    private ClientHandler sender;
+
+    @Setup
+    public void setUp() {
+        server = new BenchServer(2, false);
+        sender = server.getClient(0);
+        server.getServer().joinRoom(sender, "bench");
+        server.getServer().joinRoom(server.getClient(1), "bench");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        sender.broadcastMessage(line);
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The client side of the online list: splitting the usernames out of an
+ * "ONLINE:version:user1,user2,..." line, which populateClientList does
+ * before handing them to the GUI.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ClientListParseBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private String line;
+    private int versionEnd;
+
+    @Setup
+    public void setUp() {
+        StringBuilder online = new StringBuilder("ONLINE:12345:");
+        for (int i = 0; i < users; i++) {
+            if (i > 0) {
+                online.append(',');
+            }
+            online.append("user").append(i);
+        }
+        line = online.toString();
+        versionEnd = line.indexOf(':', 7);
+    }
+
+    @Benchmark
+    public String[] parseUserList() {
+        return Client.parseUserList(line, versionEnd);
+    }
+}
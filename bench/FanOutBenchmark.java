@@ -0,0 +1,54 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Group chat fan-out: one message sent with groupChat to every other logged
+ * in client. An operation is one message to all recipients, so ops/s times
+ * the number of recipients is messages queued per second. The writers drain
+ * the queues into in-memory streams at the same time, and a queue that
+ * fills up drops its oldest message like in the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private BenchServer server;
+    private ClientHandler sender;
+
+    @Setup
+    public void setUp() {
+        server = new BenchServer(recipients + 1, binary);
+        sender = server.getClient(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void groupChat() {
+        sender.groupChat(Message.group(sender, "hello everyone"));
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Building the full list of online users that a client gets on login and
+ * after a resync, the "ONLINE:version:user1,..." line for text clients and
+ * the SNAPSHOT frame for binary ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OnlineUsersBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private BenchServer server;
+    private ClientHandler client;
+
+    @Setup
+    public void setUp() {
+        server = new BenchServer(users, binary);
+        client = server.getClient(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void sendOnlineUsers() {
+        server.getServer().sendOnlineUsers(client);
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Whisper routing with a given number of clients online: a text client
+ * whispers by name ("@user name"), which is looked up in the username map,
+ * a binary client by session id, which is looked up in the registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WhisperBenchmark {
+    @Param({"10", "10000"})
+    public int clients;
+
+    private BenchServer textServer;
+    private BenchServer binaryServer;
+    private ClientHandler textSender;
+    private ClientHandler binarySender;
+    private String line;
+    private byte[] frame;
+    private int bodyOffset;
+    private final Protocol.Inbound inbound = new Protocol.Inbound();
+
+    @Setup
+    public void setUp() {
+        textServer = new BenchServer(clients, false);
+        textSender = textServer.getClient(0);
+        line = "@user" + (clients - 1) + " hello there";
+
+        binaryServer = new BenchServer(clients, true);
+        binarySender = binaryServer.getClient(0);
+        byte[] text = "hello there".getBytes(StandardCharsets.UTF_8);
+        int recipient = binaryServer.getClient(clients - 1).getId();
+        frame = Protocol.encode(Protocol.WHISPER, 0, recipient, null, text, 0, text.length);
+        //The frame starts with the varint length, onFrame gets what comes after it
+        bodyOffset = Protocol.varintSize(frame.length - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        textServer.close();
+        binaryServer.close();
+    }
+
+    @Benchmark
+    public void byName() {
+        textSender.whisper(line);
+    }
+
+    @Benchmark
+    public void byId() throws IOException {
+        inbound.parse(frame, bodyOffset, frame.length - bodyOffset);
+        binarySender.onFrame(inbound);
+    }
+}
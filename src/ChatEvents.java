@@ -0,0 +1,104 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Java Flight Recorder events for the life of a chat message: received from
+ * a client, fanned out to the recipients' queues, written to each
+ * recipient's socket, plus whisper routing and clients leaving.
+ *
+ * Events are only recorded while a recording has them enabled (see
+ * ChatRecording, or jcmd <pid> JFR.start). Otherwise begin(), shouldCommit()
+ * and commit() do nothing and the JIT removes the event object altogether,
+ * so they can stay on the message path. Stack traces are off, they would
+ * cost far more than the events themselves.
+ */
+public final class ChatEvents {
+
+    private ChatEvents() {
+    }
+
+    @Name("chat.MessageReceived")
+    @Label("Message Received")
+    @Category("Chat")
+    @Description("A line or frame read from a logged in client")
+    @StackTrace(false)
+    public static final class MessageReceived extends Event {
+        @Label("User")
+        public String username;
+        @Label("Session Id")
+        public int sessionId;
+        @Label("Frame Type")
+        @Description("The binary protocol frame type, 0 for a text line")
+        public byte frameType;
+        @Label("Size")
+        @DataAmount
+        public int bytes;
+    }
+
+    @Name("chat.FanOut")
+    @Label("Fan-out")
+    @Category("Chat")
+    @Description("A group or room message handed to every recipient's queue, from start to end")
+    @StackTrace(false)
+    public static final class FanOut extends Event {
+        @Label("Sender")
+        public String sender;
+        @Label("Room")
+        @Description("Empty for group chat")
+        public String room;
+        @Label("Recipients")
+        public int recipients;
+    }
+
+    @Name("chat.RecipientWrite")
+    @Label("Recipient Write")
+    @Category("Chat")
+    @Description("Queued messages written to one client's socket")
+    @StackTrace(false)
+    public static final class RecipientWrite extends Event {
+        @Label("Recipient")
+        public String recipient;
+        @Label("Messages")
+        public int messages;
+        @Label("Size")
+        @DataAmount
+        public int bytes;
+        @Label("Flushed")
+        @Description("Whether the socket was flushed, a blocking writer may hold back a flush while more is queued")
+        public boolean flushed;
+    }
+
+    @Name("chat.WhisperRouted")
+    @Label("Whisper Routed")
+    @Category("Chat")
+    @Description("Where a whisper went: local, cluster, offline or not found")
+    @StackTrace(false)
+    public static final class WhisperRouted extends Event {
+        @Label("Sender")
+        public String sender;
+        @Label("Recipient")
+        public String recipient;
+        @Label("Route")
+        public String route;
+    }
+
+    @Name("chat.ClientRemoved")
+    @Label("Client Removed")
+    @Category("Chat")
+    @Description("A logged in client left or was disconnected")
+    @StackTrace(false)
+    public static final class ClientRemoved extends Event {
+        @Label("User")
+        public String username;
+        @Label("Session Id")
+        public int sessionId;
+        @Label("Messages Dropped")
+        @Description("Messages its outbound queue threw away because it read too slowly")
+        public long dropped;
+    }
+}
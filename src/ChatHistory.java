@@ -0,0 +1,212 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * This class keeps the recent chat history that a client is shown when it
+ * logs in, and pages older history out of the message journal on "/history".
+ *
+ * Recent group messages are kept in one HistoryRing and each user's recent
+ * whispers (sent and received) in a smaller ring of their own, so the
+ * catch-up batch on login is built from memory without touching the disk.
+ * Room messages are not replayed, a client only sees a room while it is a
+ * member. "/history" walks the journal backwards from the oldest message the
+ * client has already been shown, one page per command.
+ */
+public class ChatHistory {
+    //Most journal records looked at for one /history page, so a user with no
+    // messages in a huge journal can't make the server scan all of it
+    private static final int MAX_SCAN = 4096;
+    //Journal records read at a time while paging backwards
+    private static final int SCAN_STEP = 256;
+    //A batch is split into HISTORY frames of about this many bytes, well under Protocol.MAX_FRAME
+    private static final int CHUNK_BYTES = Protocol.MAX_FRAME / 2;
+    //What a batch is, sent as the recipient id of its HISTORY frames
+    public static final int CATCH_UP = 0;
+    public static final int PAGE = 1;
+    public static final int MAILBOX = 2;
+
+    private final MessageJournal journal;
+    private final HistoryRing group;
+    private final ConcurrentHashMap<String, HistoryRing> whispers = new ConcurrentHashMap<>();
+    private final int whisperCapacity;
+    private final int pageSize;
+
+    /**
+     * @param journal Where older history is paged from, null if there is no journal.
+     * @param groupCapacity How many group messages a new client is shown, 0 for none.
+     * @param whisperCapacity How many of their whispers a new client is shown, 0 for none.
+     * @param pageSize How many messages one /history command returns.
+     */
+    public ChatHistory(MessageJournal journal, int groupCapacity, int whisperCapacity, int pageSize) {
+        this.journal = journal;
+        this.group = groupCapacity > 0 ? new HistoryRing(groupCapacity) : null;
+        this.whisperCapacity = whisperCapacity;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Remembers a chat message that has just been sent.
+     * @param id The message's journal id, 0 if there is no journal.
+     * @param message A group, room or whisper message.
+     * @param recipient The recipient of a whisper, otherwise null.
+     */
+    public void add(long id, Message message, ClientHandler recipient) {
+        long now = System.currentTimeMillis();
+        String sender = message.getSender().getUsername();
+        if (message.getType() == Protocol.GROUP && group != null) {
+            group.add(id, Protocol.GROUP, now, sender, "", message.text());
+        } else if (message.getType() == Protocol.WHISPER && whisperCapacity > 0) {
+            String text = message.text();
+            whispersOf(sender).add(id, Protocol.WHISPER, now, sender, recipient.getUsername(), text);
+            whispersOf(recipient.getUsername()).add(id, Protocol.WHISPER, now, sender, recipient.getUsername(), text);
+        }
+    }
+
+    private HistoryRing whispersOf(String username) {
+        return whispers.computeIfAbsent(username, name -> new HistoryRing(whisperCapacity));
+    }
+
+    /**
+     * Sends a client that has just logged in the recent group messages and
+     * its own recent whispers, oldest first, as one batch. Nothing is sent if
+     * there is no history yet.
+     * @param clientHandler The client, it must not be logged in yet so no live
+     *                      message can arrive before its history.
+     */
+    public void sendCatchUp(ClientHandler clientHandler) {
+        List<MessageJournal.Record> records = new ArrayList<>();
+        if (group != null) {
+            group.copyTo(records);
+        }
+        HistoryRing own = whispers.get(clientHandler.getUsername());
+        if (own != null) {
+            own.copyTo(records);
+            //Both rings are in order, a stable sort just interleaves them
+            records.sort(Comparator.comparingLong(record -> record.timestamp));
+        }
+        if (!records.isEmpty()) {
+            send(clientHandler, records, CATCH_UP, null);
+        }
+    }
+
+    /**
+     * Sends a client the page of history just before what it has already
+     * been shown, read from the journal. Group messages and the client's own
+     * whispers are included.
+     * @param clientHandler The client that sent "/history".
+     */
+    public void sendPage(ClientHandler clientHandler) {
+        if (journal == null) {
+            clientHandler.communicate("Older history is not kept on this server.");
+            return;
+        }
+        String username = clientHandler.getUsername();
+        long cursor = clientHandler.getHistoryCursor();
+        if (cursor == 0) {
+            cursor = catchUpStart(username);
+        }
+        //Collected newest first
+        List<MessageJournal.Record> page = new ArrayList<>();
+        long scanned = 0;
+        while (page.size() < pageSize && cursor > 1 && scanned < MAX_SCAN) {
+            long from = Math.max(1, cursor - SCAN_STEP);
+            List<MessageJournal.Record> window = journal.read(from, (int) (cursor - from));
+            scanned += cursor - from;
+            long oldest = from;
+            for (int i = window.size() - 1; i >= 0 && page.size() < pageSize; i--) {
+                MessageJournal.Record record = window.get(i);
+                if (isVisibleTo(record, username)) {
+                    page.add(record);
+                    oldest = record.id;
+                }
+            }
+            //A full page may stop in the middle of the window, the next one carries on from there
+            cursor = page.size() == pageSize ? oldest : from;
+        }
+        clientHandler.setHistoryCursor(Math.max(cursor, 1));
+        Collections.reverse(page);
+        send(clientHandler, page, PAGE,
+                page.isEmpty() ? "No older messages." : "History: " + page.size() + " older messages.");
+    }
+
+    /**
+     * Finds the journal id of the oldest message the client got in its
+     * catch-up batch, or the id after the last one if it got none, so no
+     * message is both in the batch and on a page.
+     */
+    private long catchUpStart(String username) {
+        long lowest = group == null ? 0 : group.lowestId();
+        HistoryRing own = whispers.get(username);
+        long lowestWhisper = own == null ? 0 : own.lowestId();
+        if (lowest == 0 || (lowestWhisper != 0 && lowestWhisper < lowest)) {
+            lowest = lowestWhisper;
+        }
+        return lowest == 0 ? journal.getLastId() + 1 : lowest;
+    }
+
+    private static boolean isVisibleTo(MessageJournal.Record record, String username) {
+        if (record.type == Protocol.GROUP) {
+            return true;
+        }
+        return record.type == Protocol.WHISPER && (record.sender.equals(username) || record.target.equals(username));
+    }
+
+    /**
+     * Sends a batch of history to one client. Text clients get the lines they
+     * would have got live (plus "Whisper to" for whispers they sent), binary
+     * clients HISTORY frames with the type, timestamp, sender, target and
+     * text of every message. A big batch goes out as several frames.
+     * @param kind CATCH_UP, PAGE or MAILBOX.
+     * @param header A line text clients get before the messages, or null.
+     */
+    static void send(ClientHandler clientHandler, List<MessageJournal.Record> records, int kind, String header) {
+        StringBuilder lines = new StringBuilder();
+        if (header != null) {
+            lines.append(header);
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int count = 0;
+        for (MessageJournal.Record record : records) {
+            if (lines.length() > 0) {
+                lines.append('\n');
+            }
+            if (record.type == Protocol.WHISPER && record.sender.equals(clientHandler.getUsername())) {
+                lines.append("Whisper to ").append(record.target).append(": ").append(record.text);
+            } else if (record.type == Protocol.WHISPER) {
+                lines.append("Whisper from ").append(record.sender).append(": ").append(record.text);
+            } else {
+                lines.append(record.sender).append(": ").append(record.text);
+            }
+            payload.write(record.type);
+            Protocol.writeVarint(payload, record.timestamp);
+            payload.writeBytes(Protocol.encodeName(record.sender));
+            payload.writeBytes(Protocol.encodeName(record.target));
+            payload.writeBytes(Protocol.encodeName(record.text));
+            count++;
+            if (payload.size() >= CHUNK_BYTES) {
+                deliver(clientHandler, kind, lines, payload, count);
+                count = 0;
+            }
+        }
+        if (count > 0 || lines.length() > 0) {
+            deliver(clientHandler, kind, lines, payload, count);
+        }
+    }
+
+    /**
+     * Sends one chunk of a batch and empties the buffers for the next one.
+     */
+    private static void deliver(ClientHandler clientHandler, int kind, StringBuilder lines,
+            ByteArrayOutputStream payload, int count) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+        Protocol.writeVarint(frame, count);
+        frame.writeBytes(payload.toByteArray());
+        clientHandler.deliver(Message.control(Protocol.HISTORY, kind, lines.toString(), frame.toByteArray()));
+        lines.setLength(0);
+        payload.reset();
+    }
+}
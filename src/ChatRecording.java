@@ -0,0 +1,151 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/*
+ * Starts Java Flight Recorder recordings with the chat events enabled, from
+ * commands typed into the server's console:
+ *
+ *   record <seconds>   records for that long and writes the file at the end
+ *   dump               writes out what the continuous recording holds
+ *
+ * The continuous recording is started with chat.jfrMaxAgeMinutes greater
+ * than 0 and keeps that many minutes of events in memory (and JFR's own
+ * spill files), so after a latency spike the events leading up to it can
+ * still be dumped. Files go to chat.jfrDir ("recordings" by default) and
+ * are opened with JDK Mission Control or "jfr print".
+ */
+public class ChatRecording {
+    private final File directory;
+    //Null unless chat.jfrMaxAgeMinutes was set
+    private final Recording continuous;
+
+    /**
+     * @param directory Where recordings are written.
+     * @param maxAgeMinutes How much the continuous recording keeps, 0 for no continuous recording.
+     */
+    public ChatRecording(File directory, long maxAgeMinutes) {
+        this.directory = directory;
+        Recording recording = null;
+        if (maxAgeMinutes > 0) {
+            try {
+                recording = new Recording(settings());
+                recording.setName("chat-continuous");
+                recording.setMaxAge(Duration.ofMinutes(maxAgeMinutes));
+                recording.setToDisk(true);
+                recording.start();
+                System.out.println("Flight recording the last " + maxAgeMinutes + " minutes, type \"dump\" to save it.");
+            } catch (IOException | ParseException e) {
+                System.out.println("Could not start the continuous flight recording: " + e.getMessage());
+                recording = null;
+            }
+        }
+        this.continuous = recording;
+    }
+
+    /**
+     * The JDK's default settings (low overhead, meant for production) with
+     * every chat event turned on and no duration threshold.
+     */
+    private static Map<String, String> settings() throws IOException, ParseException {
+        Map<String, String> settings = new HashMap<>(Configuration.getConfiguration("default").getSettings());
+        for (String event : new String[] {"MessageReceived", "FanOut", "RecipientWrite", "WhisperRouted", "ClientRemoved"}) {
+            settings.put("chat." + event + "#enabled", "true");
+            settings.put("chat." + event + "#threshold", "0 ms");
+        }
+        return settings;
+    }
+
+    /**
+     * Reads commands from the console on a daemon thread until it is closed.
+     */
+    public void startConsole() {
+        Thread console = new Thread(() -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        System.out.println(handleCommand(line.trim()));
+                    }
+                }
+            } catch (IOException e) {
+                //No console, the server simply can't be given commands
+            }
+        }, "console");
+        console.setDaemon(true);
+        console.start();
+    }
+
+    /**
+     * Runs one console command.
+     * @return What to print.
+     */
+    public String handleCommand(String command) {
+        String[] words = command.split("\\s+");
+        if (words[0].equals("record") && words.length == 2) {
+            try {
+                return record(Integer.parseInt(words[1]));
+            } catch (NumberFormatException e) {
+                return "Usage: record <seconds>";
+            }
+        } else if (words[0].equals("dump") && words.length == 1) {
+            return dump();
+        }
+        return "Commands: record <seconds>, dump";
+    }
+
+    /**
+     * Starts a recording that stops by itself and is written to a file.
+     * @param seconds How long to record.
+     */
+    public String record(int seconds) {
+        if (seconds <= 0) {
+            return "Usage: record <seconds>";
+        }
+        try {
+            File file = newFile("record");
+            Recording recording = new Recording(settings());
+            recording.setName("chat-" + seconds + "s");
+            recording.setDestination(file.toPath());
+            recording.setDuration(Duration.ofSeconds(seconds));
+            recording.start();
+            return "Recording for " + seconds + " s to " + file + ".";
+        } catch (IOException | ParseException e) {
+            return "Could not start a flight recording: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Writes what the continuous recording holds to a file, it keeps running.
+     */
+    public String dump() {
+        if (continuous == null) {
+            return "There is no continuous recording, start the server with -Dchat.jfrMaxAgeMinutes=<minutes>.";
+        }
+        try {
+            File file = newFile("dump");
+            continuous.dump(file.toPath());
+            return "Wrote the last " + continuous.getMaxAge().toMinutes() + " minutes to " + file + ".";
+        } catch (IOException e) {
+            return "Could not write the flight recording: " + e.getMessage();
+        }
+    }
+
+    private File newFile(String kind) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return new File(directory, "chat-" + kind + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr");
+    }
+}
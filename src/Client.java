@@ -1,5 +1,8 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javafx.application.Application;
@@ -17,12 +20,24 @@ import javafx.stage.Stage;
  * It also implements the main entry point for the JavaFX application and handles the user interface.
  */
 public class Client extends Application {
+    //Set with --text to talk to a server that only knows the old line protocol
+    private static boolean textProtocol;
+    //Set with --port N to connect to another server of a cluster
+    private static int port = 1234;
     private Socket socket;
     private BufferedWriter output;
     private BufferedReader input;
+    //Used instead of output and input when speaking the binary protocol
+    private OutputStream binaryOutput;
+    private DataInputStream binaryInput;
+    private boolean negotiated;
     private String username;
     private String[] users;
+    //Version of the last presence snapshot or delta applied, only touched by the listener thread
+    private long presenceVersion = -1;
     private ConcurrentHashMap<String, Integer> activeClientMap = new ConcurrentHashMap<String, Integer>();
+    //Rooms joined with /join and their ids, only used by the binary protocol
+    private ConcurrentHashMap<String, Integer> joinedRooms = new ConcurrentHashMap<String, Integer>();
     private ConcurrentHashMap<String, VBox> openWispWindows;
     private VBox wispBox;
     private ListView<String> activeClientList;
@@ -36,9 +51,14 @@ public class Client extends Application {
      */
     public Client() {
         try {
-            this.socket = new Socket("10.242.69.49", 1234);
-            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            this.socket = new Socket("10.242.69.49", port);
+            if (textProtocol) {
+                this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            } else {
+                this.binaryInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.binaryOutput = new BufferedOutputStream(socket.getOutputStream());
+            }
         } catch (IOException e) {
             System.out.println("Unable to connect to the server.");
             Platform.exit();
@@ -50,13 +70,18 @@ public class Client extends Application {
      * Starts a new thread that listens for incoming messages from the server.
      * The thread blocks on the readLine() call until a message is received.
      * The different responses from the server are handled differently.
-     * If the message is "ONLINE:", the client list is updated.
-     * If the message is "LEAVING", the client is removed from the list.
+     * If the message is "ONLINE:", the client list is replaced.
+     * If the message is "JOIN:" or "LEAVE:", one client is added to or removed from the list.
+     * If the message is "PRESENCE:", a batch of clients is added to or removed from the list.
      * If the message is a whisper, the whisper is displayed in the whisper window.
      * If the message is "terminate", the connection is closed and the program exits.
      * If the message is anything else, it is appended to the global chat text area in the GUI.
      */
     public void listenForMessages() {
+        if (!textProtocol) {
+            new Thread(this::listenForFrames).start();
+            return;
+        }
         // Running the message listener in a separate thread avoids any potential blockages
         new Thread(() -> { 
             String msg;
@@ -70,8 +95,12 @@ public class Client extends Application {
                     //Get client list from server
                     } else if (msg.startsWith("ONLINE:")) {
                         populateClientList(msg);
-                    } else if (msg.startsWith("LEAVING")) {
+                    } else if (isPresenceDelta(msg, "JOIN:")) {
+                        addClientToList(msg);
+                    } else if (isPresenceDelta(msg, "LEAVE:")) {
                         removeClientFromList(msg);
+                    } else if (isPresenceDelta(msg, "PRESENCE:")) {
+                        applyPresenceBatch(msg);
                     } else if (msg.startsWith("Whisper from ")) {
                         receiveIncomingWisp(msg);
                     } else if (msg.equals("terminate")) {
@@ -91,6 +120,113 @@ public class Client extends Application {
         }).start();
     }
 
+    /**
+     * The listener loop for the binary protocol. Every frame says what it is in
+     * its type byte, so nothing has to be guessed from the text. One frame
+     * object is reused for the whole connection.
+     */
+    private void listenForFrames() {
+        Protocol.Inbound frame = new Protocol.Inbound();
+        while (isConnectionActive()) {
+            try {
+                frame.read(binaryInput);
+                switch (frame.type) {
+                    case Protocol.SNAPSHOT:
+                        applySnapshot(frame);
+                        break;
+                    case Protocol.PRESENCE:
+                        applyPresenceFrame(frame);
+                        break;
+                    case Protocol.GROUP:
+                        showGlobal(frame.readName() + ": " + frame.remainingText());
+                        break;
+                    case Protocol.WHISPER:
+                        String sender = frame.readName();
+                        showWisp(sender, frame.remainingText());
+                        break;
+                    case Protocol.ROOM:
+                        String room = frame.readName();
+                        showGlobal("#" + room + " " + frame.readName() + ": " + frame.remainingText());
+                        break;
+                    case Protocol.ROOM_JOINED:
+                        String joined = frame.readName();
+                        joinedRooms.put(joined, frame.recipient);
+                        showGlobal("Joined #" + joined + ".");
+                        break;
+                    case Protocol.ROOM_LEFT:
+                        String left = frame.readName();
+                        joinedRooms.remove(left);
+                        showGlobal("Left #" + left + ".");
+                        break;
+                    case Protocol.HISTORY:
+                        showHistory(frame);
+                        break;
+                    case Protocol.TERMINATE:
+                        close();
+                        System.exit(0);
+                        break;
+                    default:
+                        showGlobal(frame.payloadText());
+                }
+            } catch (EOFException e) {
+                System.out.println("Oops! Something went wrong, try again later :(");
+                System.exit(0);
+            } catch (IOException e) {
+                close();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Appends a line to the global chat text area in the GUI.
+     * @param msg the line to show
+     */
+    private void showGlobal(String msg) {
+        Platform.runLater(() -> {
+            globalOutput.appendText(msg + "\n");
+        });
+    }
+
+    /**
+     * Sends one frame to the server. The GUI sends from several threads, so
+     * writes are synchronized to keep frames from interleaving.
+     * @param type the frame type
+     * @param recipient the session id of the recipient, or 0
+     * @param text the payload
+     */
+    private synchronized void sendFrame(byte type, int recipient, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        binaryOutput.write(Protocol.encode(type, 0, recipient, null, payload, 0, payload.length));
+        binaryOutput.flush();
+    }
+
+    /**
+     * Sends a line in the text protocol, or the matching frame in the binary
+     * protocol. Lines starting with / are commands such as /exit, lines
+     * starting with #room go to that room.
+     * @param line the line to send
+     */
+    private void sendLine(String line) throws IOException {
+        if (textProtocol) {
+            synchronized (this) {
+                output.write(line);
+                output.newLine();
+                output.flush();
+            }
+        } else if (line.startsWith("#") && line.indexOf(" ") != -1) {
+            String room = line.substring(1, line.indexOf(" "));
+            Integer roomId = joinedRooms.get(room);
+            if (roomId == null) {
+                showGlobal("You are not in #" + room + ".");
+                return;
+            }
+            sendFrame(Protocol.ROOM, roomId, line.substring(line.indexOf(" ") + 1));
+        } else {
+            sendFrame(line.startsWith("/") ? Protocol.COMMAND : Protocol.CHAT, 0, line);
+        }
+    }
+
     /**
      * Returns true if the socket is not null, is not closed, and is connected.
      * This is used to check if the connection to the server is active.
@@ -107,6 +243,8 @@ public class Client extends Application {
         try {
             if (input != null) input.close();
             if (output != null) output.close();
+            if (binaryInput != null) binaryInput.close();
+            if (binaryOutput != null) binaryOutput.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -207,7 +345,7 @@ public class Client extends Application {
             try {
                 while (true) {
                     sendNameToServer();
-                    String errResponse = input.readLine();
+                    String errResponse = readLoginResponse();
                     if (errResponse == null) {
                         close();
                         Platform.exit();
@@ -278,9 +416,7 @@ public class Client extends Application {
             // or the GUI thread so both can contiue running smoothly at the same time
             new Thread(() -> {  
                 try {
-                    output.write(message);
-                    output.newLine();
-                    output.flush();
+                    sendLine(message);
 
                     // Visuals on Client sending message GUI
                     Platform.runLater(() -> {
@@ -312,9 +448,18 @@ public class Client extends Application {
             // Same as send messages, assign its own thread to avoid stoppages and bad responsiveness
             new Thread(() -> {
                 try {
-                    output.write("@" + receiver + " " + message);
-                    output.newLine();
-                    output.flush();
+                    if (textProtocol) {
+                        sendLine("@" + receiver + " " + message);
+                    } else {
+                        // The server looks the receiver up by session id, if they are offline (or on another
+                        // server of a cluster, their id is 0) we send it by name
+                        Integer receiverId = activeClientMap.get(receiver);
+                        if (receiverId == null || receiverId == 0) {
+                            sendFrame(Protocol.COMMAND, 0, "@" + receiver + " " + message);
+                        } else {
+                            sendFrame(Protocol.WHISPER, receiverId, message);
+                        }
+                    }
 
                     Platform.runLater(() -> {
                         wispMessageOut.appendText(username + ": " + message + "\n");
@@ -464,7 +609,7 @@ public class Client extends Application {
         });
 
         if (!(message.equals(""))) {
-            wispMessageOut.appendText(receiver + ":" + message + "\n");
+            wispMessageOut.appendText(receiver + ": " + message + "\n");
         }
 
         return wispWindow;
@@ -475,14 +620,45 @@ public class Client extends Application {
      */
     private void sendNameToServer() {
         try {
-            output.write(username);
-            output.newLine();
-            output.flush();
-            
+            if (textProtocol) {
+                sendLine(username);
+                return;
+            }
+            // The first two bytes ask the server for the binary protocol
+            if (!negotiated) {
+                binaryOutput.write(Protocol.MAGIC);
+                binaryOutput.write(Protocol.VERSION);
+            }
+            sendFrame(Protocol.LOGIN, 0, username);
         } catch (IOException e) {
             System.out.println("Unsuccesful sending username to Server");
         }
     }
+
+    /**
+     * Reads the server's response to the username. In the binary protocol the
+     * server first confirms the protocol version.
+     * @return the response, or null if the connection was closed
+     */
+    private String readLoginResponse() throws IOException {
+        if (textProtocol) {
+            return input.readLine();
+        }
+        try {
+            if (!negotiated) {
+                if (binaryInput.readUnsignedByte() != Protocol.MAGIC || binaryInput.readUnsignedByte() != Protocol.VERSION) {
+                    System.out.println("The server speaks a different protocol version, try --text");
+                    return null;
+                }
+                negotiated = true;
+            }
+            Protocol.Inbound frame = new Protocol.Inbound();
+            frame.read(binaryInput);
+            return frame.type == Protocol.LOGIN_RESULT ? frame.payloadText() : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
     
     /*
      * Updates the ListView of active clients by clearing the current list and
@@ -492,35 +668,223 @@ public class Client extends Application {
         activeClientList.getItems().clear();
         activeClientList.getItems().addAll(activeClientMap.keySet());
     }
+
+    /**
+     * Checks whether a message from the server is a presence delta, which looks
+     * like "JOIN:version:user" or "LEAVE:version:user". The digit check keeps a
+     * group message from a user called JOIN or LEAVE from being mistaken for one.
+     * @param msg a string message from the server
+     * @param prefix "JOIN:" or "LEAVE:"
+     * @return true if the message is a delta of that kind
+     */
+    private boolean isPresenceDelta(String msg, String prefix) {
+        return msg.startsWith(prefix) && msg.length() > prefix.length()
+                && Character.isDigit(msg.charAt(prefix.length()));
+    }
+
+    /**
+     * Reads the version out of a presence delta and checks that it directly
+     * follows the last one applied. If it doesn't, a delta went missing, so
+     * the delta is ignored and the full list is requested again.
+     * @param msg a presence delta from the server
+     * @return the username in the delta, or null if it must not be applied
+     */
+    private String applyPresenceVersion(String msg) {
+        int versionStart = msg.indexOf(":") + 1;
+        int versionEnd = msg.indexOf(":", versionStart);
+        long version = Long.parseLong(msg.substring(versionStart, versionEnd));
+        if (!applyPresenceVersion(version)) {
+            return null;
+        }
+        return msg.substring(versionEnd + 1);
+    }
+
+    /**
+     * Checks that a presence version directly follows the last one applied.
+     * If it doesn't, a delta went missing, so the full list is requested again.
+     * @param version the version of a presence delta
+     * @return true if the delta should be applied
+     */
+    private boolean applyPresenceVersion(long version) {
+        if (version <= presenceVersion) {
+            // Already part of the list we have
+            return false;
+        }
+        if (version != presenceVersion + 1) {
+            presenceVersion = Long.MAX_VALUE;
+            requestResync();
+            return false;
+        }
+        presenceVersion = version;
+        return true;
+    }
+
+    /*
+     * Asks the server for the full list of online users again.
+     */
+    private void requestResync() {
+        try {
+            sendLine("/resync");
+        } catch (IOException e) {
+            System.out.println("Unsuccesful requesting the client list from Server");
+        }
+    }
     
 /**
  * Populates the active client list by parsing the incoming message from the server.
- * @param msg a string message from the server in the format "ONLINE:user1,user2,...,userN"
+ * This is the full list, sent on login and after a resync.
+ * @param msg a string message from the server in the format "ONLINE:version:user1,user2,...,userN"
  */
     private void populateClientList(String msg) {
-        users = msg.substring(7).split(",");
+        int versionEnd = msg.indexOf(":", 7);
+        presenceVersion = Long.parseLong(msg.substring(7, versionEnd));
+        users = parseUserList(msg, versionEnd);
+        int[] ids = new int[users.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        showClientList(users, ids);
+    }
+
+    /**
+     * Splits the usernames out of an "ONLINE:version:user1,user2,..." message.
+     * Kept apart from the GUI so the benchmarks can measure it.
+     * @param msg the message
+     * @param versionEnd the index of the colon after the version
+     * @return the usernames, one empty name if nobody is online
+     */
+    static String[] parseUserList(String msg, int versionEnd) {
+        return msg.substring(versionEnd + 1).split(",");
+    }
+
+    /**
+     * Replaces the active client list with a SNAPSHOT frame from the server,
+     * which holds the presence version and the session id and name of every
+     * online user.
+     * @param frame the SNAPSHOT frame
+     */
+    private void applySnapshot(Protocol.Inbound frame) throws IOException {
+        presenceVersion = frame.readVarlong();
+        String[] names = new String[frame.readVarint()];
+        int[] ids = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ids[i] = frame.readVarint();
+            names[i] = frame.readName();
+        }
+        showClientList(names, ids);
+    }
+
+    /**
+     * Replaces the activeClientMap and the client list in the GUI.
+     * @param names the online usernames
+     * @param ids the value stored for each name, the session id in the binary protocol
+     */
+    private void showClientList(String[] names, int[] ids) {
         // Loop thorugh the ConcurrentHashmap of currently online users to populate the client list on the GUI
         Platform.runLater(() -> {
             activeClientMap.clear();
-            for (int i = 0; i < users.length; i++) {
-                activeClientMap.put(users[i], i);
+            for (int i = 0; i < names.length; i++) {
+                // An empty list still splits into one empty name
+                if (!names[i].isEmpty()) {
+                    activeClientMap.put(names[i], ids[i]);
+                }
             }
             updateClientList();
         });
     }
+
+    /**
+     * Handles the message from the server when a client joins the group chat.
+     * Only the new client is added, the rest of the list is left alone.
+     * @param msg a string message from the server in the format "JOIN:version:user"
+     */
+    private void addClientToList(String msg) {
+        String joiningUser = applyPresenceVersion(msg);
+        if (joiningUser == null) {
+            return;
+        }
+        showJoin(joiningUser, -1);
+    }
+
+    /**
+     * Handles a batch of joins and leaves that the server merged together,
+     * for example when lots of users reconnect at once. Every entry is a
+     * username prefixed with + (joined) or - (left), in the order they happened.
+     * @param msg a string message from the server in the format "PRESENCE:version:+user1,-user2,..."
+     */
+    private void applyPresenceBatch(String msg) {
+        String changes = applyPresenceVersion(msg);
+        if (changes == null) {
+            return;
+        }
+        for (String change : changes.split(",")) {
+            if (change.startsWith("+")) {
+                showJoin(change.substring(1), -1);
+            } else if (change.startsWith("-")) {
+                showLeave(change.substring(1));
+            }
+        }
+    }
+
+    /**
+     * Handles a PRESENCE frame from the server, which holds the presence
+     * version and a list of changes, each one '+' or '-', a session id and a name.
+     * @param frame the PRESENCE frame
+     */
+    private void applyPresenceFrame(Protocol.Inbound frame) throws IOException {
+        if (!applyPresenceVersion(frame.readVarlong())) {
+            return;
+        }
+        int count = frame.readVarint();
+        for (int i = 0; i < count; i++) {
+            byte change = frame.readByte();
+            int id = frame.readVarint();
+            String name = frame.readName();
+            if (change == '+') {
+                showJoin(name, id);
+            } else {
+                showLeave(name);
+            }
+        }
+    }
+
+    /**
+     * Adds a user that joined to the activeClientMap and the client list in the GUI.
+     * @param joiningUser the username of the client that joined
+     * @param id the session id of the client, or -1 in the text protocol
+     */
+    private void showJoin(String joiningUser, int id) {
+        Platform.runLater(() -> {
+            if (activeClientMap.put(joiningUser, id < 0 ? activeClientMap.size() : id) == null) {
+                activeClientList.getItems().add(joiningUser);
+            }
+        });
+    }
     
     /**
      * Handles the message from the server when a client leaves the group chat.
-     * This method removes the leaving user from the activeClientMap and updates
-     * the client list in the GUI. It also removes any associated whisper windows
+     * This method removes the leaving user from the activeClientMap and the
+     * client list in the GUI. It also removes any associated whisper windows
      * from the GUI.
-     * @param msg a string message from the server
+     * @param msg a string message from the server in the format "LEAVE:version:user"
      */
     private void removeClientFromList(String msg) {
-        String leavingUser = msg.substring(msg.indexOf(" ") + 1);
-        activeClientMap.remove(leavingUser);
+        String leavingUser = applyPresenceVersion(msg);
+        if (leavingUser == null) {
+            return;
+        }
+        showLeave(leavingUser);
+    }
 
+    /**
+     * Removes a user that left from the activeClientMap, the client list in
+     * the GUI and closes their whisper window if one is open.
+     * @param leavingUser the username of the client that left
+     */
+    private void showLeave(String leavingUser) {
         Platform.runLater(() -> {
+            activeClientMap.remove(leavingUser);
+
             // Remove associated Whisper windows by looping through the openWispWinodows hashmap
             // containing the username as key and their assoicated whipser window as value
             for (String client: openWispWindows.keySet()) {
@@ -532,7 +896,7 @@ public class Client extends Application {
             }
 
             // Update client list to reflect user leaving
-            updateClientList();
+            activeClientList.getItems().remove(leavingUser);
         });
     }
     
@@ -544,30 +908,90 @@ public class Client extends Application {
      */
     private void receiveIncomingWisp(String msg) {
         String sender = msg.substring(13, msg.indexOf(":"));
-        String message = msg.substring(msg.indexOf(":") + 1);
+        String message = msg.substring(msg.indexOf(":") + 2);
+        showWisp(sender, message);
+    }
 
+    /**
+     * Shows a whisper in the sender's whisper window, opening one if needed.
+     * @param sender the username of the client that sent the whisper
+     * @param message the whisper
+     */
+    private void showWisp(String sender, String message) {
+        showWisp(sender, sender, message);
+    }
+
+    /**
+     * Shows a whisper in the whisper window of the other client in the
+     * conversation, opening one if needed. Used for history, where the
+     * whisper may have been sent by this client.
+     * @param partner the username of the other client in the conversation
+     * @param sender the username of the client that sent the whisper
+     * @param message the whisper
+     */
+    private void showWisp(String partner, String sender, String message) {
         //Gui implementation of wisp
         Platform.runLater(() -> {
             // Create wisp window if it does not exist
-            if (!openWispWindows.containsKey(sender)) {
-                VBox wispWindow = buildWispWindow(username, sender, message);
+            if (!openWispWindows.containsKey(partner)) {
+                VBox wispWindow = buildWispWindow(username, partner, "");
                 wispBox.getChildren().add(wispWindow);
-                openWispWindows.put(sender, wispWindow);
-            // Append text to the open whisperWinodow if it does exist
-            } else {
-                VBox wispWindow = openWispWindows.get(sender);
-                TextArea wispMessageOut = (TextArea) wispWindow.getChildren().get(0);
-                wispMessageOut.appendText(sender + ":" + message + "\n");
+                openWispWindows.put(partner, wispWindow);
             }
+            // Append text to the whisper window
+            VBox wispWindow = openWispWindows.get(partner);
+            TextArea wispMessageOut = (TextArea) wispWindow.getChildren().get(0);
+            wispMessageOut.appendText(sender + ": " + message + "\n");
         });
     }
 
+    /**
+     * Shows a HISTORY frame. Group messages of the catch-up after login are
+     * added to the global chat, an older page from "/history" goes above
+     * everything already there. Whispers go to their whisper windows.
+     * @param frame the HISTORY frame
+     */
+    private void showHistory(Protocol.Inbound frame) throws IOException {
+        boolean page = frame.recipient == 1;
+        int count = frame.readVarint();
+        StringBuilder lines = new StringBuilder();
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm");
+        for (int i = 0; i < count; i++) {
+            byte type = frame.readByte();
+            long timestamp = frame.readVarlong();
+            String sender = frame.readName();
+            String target = frame.readName();
+            String text = frame.readName();
+            if (type == Protocol.WHISPER) {
+                showWisp(sender.equals(username) ? target : sender, sender, text);
+            } else {
+                lines.append('[').append(time.format(new Date(timestamp))).append("] ")
+                        .append(sender).append(": ").append(text).append('\n');
+            }
+        }
+        if (page) {
+            String older = (count == 0 ? "No older messages.\n" : "") + lines;
+            Platform.runLater(() -> globalOutput.insertText(0, older));
+        } else if (lines.length() > 0) {
+            showGlobal(lines.substring(0, lines.length() - 1));
+        }
+    }
+
     /**
      * This is the main entry point of the JavaFX application.
      * It calls launch to start the JavaFX application thread.
+     * Passing --text uses the old line protocol instead of the binary one,
+     * --port N connects to a server on another port than 1234.
      * @param args The command line arguments.
      */
     public static void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--text")) {
+                textProtocol = true;
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            }
+        }
         launch(args);
     }
 }
@@ -1,10 +1,11 @@
 import java.net.Socket;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 /*
  * This class represents a client that connects to a server and sends and
@@ -14,20 +15,151 @@ import java.io.OutputStreamWriter;
 public class ClientHandler implements Runnable {
     private Socket socket;
     private BufferedReader reader;
-    private BufferedWriter writer;
+    //Set instead of the reader when the client speaks the binary protocol
+    private InputStream in;
+    private boolean binary;
+    private OutputStream out;
+    private NioConnection connection;
     private String username;
+    //Session id handed out at login, 0 until then
+    private int id;
+    //The username as it appears in binary frames, encoded once
+    private byte[] nameBytes;
+    //Set once the client has been told its username was accepted, before that nobody else may write to it
+    private volatile boolean loggedIn;
+    //Set while the client is in the presence list that other clients see
+    private volatile boolean present;
+    private Server server;
+    //Only used to look names up, routing goes through the session registry
     private ConcurrentHashMap<String, ClientHandler> clientList;
+    private SessionRegistry sessions;
+    //Rooms this client is in, by room name
+    private final ConcurrentHashMap<String, Room.Membership> rooms = new ConcurrentHashMap<>();
+    //Messages for this client, written out by its own writer task so senders never block on this socket
+    private OutboundQueue<Frame> outbound;
+    private volatile boolean disconnected;
+    //Drops already printed by the server's reporter
+    private long reportedDrops;
+    //Journal id the next /history page ends before, 0 until the first page
+    private long historyCursor;
 
-    public ClientHandler(Socket socket, ConcurrentHashMap<String, ClientHandler> clientList, String username) {
-        try {
-            this.socket = socket;
-            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.username = username;
-            this.clientList = clientList;
-        } catch (IOException e) {
-            communicate("terminate");
+    public ClientHandler(Socket socket, BufferedReader reader, OutputStream out, Server server, String username) {
+        this.socket = socket;
+        this.reader = reader;
+        this.out = out;
+        this.username = username;
+        this.server = server;
+        this.clientList = server.getClientList();
+        this.sessions = server.getSessions();
+        this.outbound = new OutboundQueue<>(server.getOutboundCapacity(), server.getOverflowPolicy(),
+                server.getMetrics().getQueueLatency());
+    }
+
+    /**
+     * Creates a handler for a blocking client that speaks the binary protocol.
+     */
+    public ClientHandler(Socket socket, InputStream in, OutputStream out, Server server, String username) {
+        this.socket = socket;
+        this.in = in;
+        this.binary = true;
+        this.out = out;
+        this.username = username;
+        this.server = server;
+        this.clientList = server.getClientList();
+        this.sessions = server.getSessions();
+        this.outbound = new OutboundQueue<>(server.getOutboundCapacity(), server.getOverflowPolicy(),
+                server.getMetrics().getQueueLatency());
+    }
+
+    /**
+     * Creates a handler for a client of the non-blocking server. There is no
+     * reader loop, the event loop hands every line to broadcastMessage (or
+     * every frame to onFrame) and everything sent to the client is queued on
+     * the connection.
+     */
+    public ClientHandler(NioConnection connection, Server server, String username, boolean binary) {
+        this.connection = connection;
+        this.binary = binary;
+        this.username = username;
+        this.server = server;
+        this.clientList = server.getClientList();
+        this.sessions = server.getSessions();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return The username encoded as a binary protocol name (varint length + UTF-8).
+     */
+    public byte[] getNameBytes() {
+        if (nameBytes == null) {
+            nameBytes = Protocol.encodeName(username);
         }
+        return nameBytes;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public ConcurrentHashMap<String, Room.Membership> getRooms() {
+        return rooms;
+    }
+
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    public void setLoggedIn() {
+        loggedIn = true;
+    }
+
+    public boolean isPresent() {
+        return present;
+    }
+
+    public void setPresent(boolean present) {
+        this.present = present;
+    }
+
+    /**
+     * @return The number of messages waiting to be written to this client.
+     */
+    public int getQueueDepth() {
+        return connection != null ? connection.getQueueDepth() : outbound.size();
+    }
+
+    /**
+     * @return The number of messages for this client thrown away because its queue was full.
+     */
+    public long getDroppedMessages() {
+        return connection != null ? connection.getDroppedMessages() : outbound.getDropped();
+    }
+
+    long getReportedDrops() {
+        return reportedDrops;
+    }
+
+    void setReportedDrops(long reportedDrops) {
+        this.reportedDrops = reportedDrops;
+    }
+
+    long getHistoryCursor() {
+        return historyCursor;
+    }
+
+    void setHistoryCursor(long historyCursor) {
+        this.historyCursor = historyCursor;
     }
 
     /**
@@ -35,18 +167,208 @@ public class ClientHandler implements Runnable {
      * the client, and broadcasts them to all other connected clients.
      */
     public void run() {
+        if (binary) {
+            readFrames();
+            return;
+        }
         String messageFromClient;
         while (socket.isConnected()) {
             try {
                 messageFromClient = reader.readLine();
+                if (messageFromClient != null) {
+                    //Characters, not bytes, so a line that isn't ASCII is counted a little short
+                    received((byte) 0, messageFromClient.length() + 1);
+                    server.getMetrics().bytesIn(messageFromClient.length() + 1);
+                }
                 broadcastMessage(messageFromClient);
             } catch (IOException e) {
-                communicate("terminate");
+                removeClient();
+                outbound.close();
+                break;
+            }
+        }
+    }
+
+    /**
+     * The main loop for a client that speaks the binary protocol. One frame
+     * object is reused for every message, so a chat message is passed on
+     * without ever being turned into a String.
+     */
+    private void readFrames() {
+        Protocol.Inbound frame = new Protocol.Inbound();
+        while (true) {
+            try {
+                frame.read(in);
+                received(frame.type, Protocol.varintSize(frame.length) + frame.length);
+                server.getMetrics().bytesIn(Protocol.varintSize(frame.length) + frame.length);
+                onFrame(frame);
+            } catch (IOException e) {
+                removeClient();
+                outbound.close();
                 break;
             }
         }
     }
 
+    /**
+     * Counts a line or frame read from the client for the metrics and, if
+     * it is being recorded, the MessageReceived flight recorder event.
+     * @param frameType The binary frame type, 0 for a text line.
+     * @param bytes Its size on the wire.
+     */
+    void received(byte frameType, int bytes) {
+        server.getMetrics().messageIn();
+        ChatEvents.MessageReceived event = new ChatEvents.MessageReceived();
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.sessionId = id;
+            event.frameType = frameType;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Handles one frame from a client that speaks the binary protocol. The
+     * type byte says what the frame is, so unlike broadcastMessage nothing
+     * has to be guessed from the text.
+     * @param frame The frame, only valid until this returns.
+     */
+    public void onFrame(Protocol.Inbound frame) {
+        switch (frame.type) {
+            case Protocol.CHAT:
+                groupChat(Message.group(this, frame.buffer, frame.payloadOffset, frame.payloadLength));
+                break;
+            case Protocol.WHISPER:
+                ChatEvents.WhisperRouted routed = new ChatEvents.WhisperRouted();
+                routed.begin();
+                ClientHandler client = sessions.get(frame.recipient);
+                if (client == null || !client.loggedIn) {
+                    communicate("Client not found");
+                    whisperRouted(routed, "#" + frame.recipient, "not found");
+                } else if (frame.payloadLength == 0) {
+                    communicate("No message attached");
+                } else {
+                    long start = System.nanoTime();
+                    Message whisper = Message.whisper(this, client, frame.buffer, frame.payloadOffset, frame.payloadLength);
+                    client.deliver(whisper);
+                    server.getMetrics().fanOut(1, start);
+                    whisperRouted(routed, client.username, "local");
+                    server.record(whisper, client);
+                }
+                break;
+            case Protocol.ROOM:
+                Room room = server.getRoom(frame.recipient);
+                Room.Membership membership = room == null ? null : rooms.get(room.getName());
+                if (membership == null) {
+                    communicate("You are not in that room.");
+                } else {
+                    roomChat(membership.getRoom(), Message.room(this, room, frame.buffer, frame.payloadOffset, frame.payloadLength));
+                }
+                break;
+            case Protocol.COMMAND:
+                //Commands are rare, so they go through the same code as the text protocol
+                broadcastMessage(frame.payloadText());
+                break;
+            default:
+                communicate("Unknown message type " + frame.type);
+        }
+    }
+
+    /**
+     * The writer task of the client handler. Takes messages off the outbound
+     * queue and writes them to the socket until the queue is closed.
+     * While more messages are waiting the writes are coalesced in the stream's
+     * buffer, and it is only flushed once the queue is empty or the oldest
+     * unflushed message has waited longer than the server's flush budget.
+     * With a budget of 0 every message is flushed on its own.
+     */
+    public void writeMessages() {
+        long budget = server.getFlushBudgetNanos();
+        Metrics metrics = server.getMetrics();
+        try {
+            Frame frame;
+            long unflushedSince = 0;
+            boolean unflushed = false;
+            while ((frame = outbound.take()) != null) {
+                ChatEvents.RecipientWrite event = new ChatEvents.RecipientWrite();
+                event.begin();
+                frame.writeTo(out);
+                long now = System.nanoTime();
+                metrics.messageOut(frame, now);
+                if (!unflushed) {
+                    unflushed = true;
+                    unflushedSince = now;
+                }
+                boolean flush = outbound.isEmpty() || now - unflushedSince >= budget;
+                if (flush) {
+                    out.flush();
+                    metrics.socketWrite(now);
+                    unflushed = false;
+                }
+                if (event.shouldCommit()) {
+                    event.recipient = username;
+                    event.messages = 1;
+                    event.bytes = frame.length();
+                    event.flushed = flush;
+                    event.commit();
+                }
+            }
+        } catch (IOException e) {
+            //The reader notices the closed socket and removes the client
+            disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a handshake response straight to the client. Only used while
+     * logging in, before anyone else can send to this client and before the
+     * writer task has started.
+     * A binary client gets a LOGIN_RESULT frame that carries its session id,
+     * which is 0 if the name was not accepted.
+     * @param response The response to the username the client sent.
+     */
+    public void respond(String response) {
+        Frame frame;
+        if (binary) {
+            byte[] text = response.getBytes(StandardCharsets.UTF_8);
+            frame = Frame.wrap(Protocol.encode(Protocol.LOGIN_RESULT, 0, id, null, text, 0, text.length), false);
+        } else {
+            frame = Frame.of(response);
+        }
+        if (connection != null) {
+            connection.send(frame);
+            return;
+        }
+        try {
+            frame.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Cuts the connection to the client, for example because it reads too
+     * slowly to keep up. The thread that reads from the client notices and
+     * removes it from the chat.
+     */
+    public void disconnect() {
+        disconnected = true;
+        if (connection != null) {
+            connection.evict();
+            return;
+        }
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Broadcasts a message from the client to all other connected clients.
      * This method handles private messages, group messages, and the /exit
@@ -63,8 +385,23 @@ public class ClientHandler implements Runnable {
             System.out.println("Client has left the chat.");
             removeClient();
             return;
+        } else if (actualMessage.equals("/resync")) {
+            //The client missed a presence delta and wants the full list again
+            server.sendOnlineUsers(this);
+            return;
+        } else if (actualMessage.equals("/history")) {
+            server.getHistory().sendPage(this);
+            return;
+        } else if (actualMessage.startsWith("/join ")) {
+            server.joinRoom(this, roomName(actualMessage.substring(6)));
+            return;
+        } else if (actualMessage.startsWith("/leave ")) {
+            server.leaveRoom(this, roomName(actualMessage.substring(7)));
+            return;
         } else if (actualMessage.startsWith("@") && actualMessage.indexOf(" ") != -1) {
             whisper(actualMessage);
+        } else if (actualMessage.startsWith("#") && actualMessage.indexOf(" ") != -1) {
+            roomMessage(actualMessage);
         } else {
             groupChat(message, false);
         }
@@ -83,29 +420,105 @@ public class ClientHandler implements Runnable {
             communicate("No message attached");
             return;
         }
+        if (bool) {
+            //Deals with an edge case with regards to clients leaving and joining
+            groupChat(Message.notice(message));
+        } else {
+            //Normal group chat message
+            groupChat(Message.group(this, message));
+        }
+    }
+
+    /**
+     * Sends a message to all logged in clients except the sender. The message
+     * is encoded at most once per protocol and every recipient shares it.
+     * @param message The message to be sent to other clients.
+     */
+    public void groupChat(Message message) {
         //Accessing the individual clients' handlers and using them to broadcast the message was the cleanest way
         // to implement the feature in our humble opinion
-        for (ClientHandler client : clientList.values()) {
-            if (!client.username.equals(username)) {
-                synchronized (client) {
-                    try {
-                        if (bool) {
-                            //Deals with an edge case with regards to clients leaving and joining
-                            client.writer.write(message);
-                        } else {
-                            //Normal group chat message
-                            client.writer.write(username + ": " + message);
-                        }
-                        client.writer.newLine();
-                        client.writer.flush();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+        ChatEvents.FanOut event = new ChatEvents.FanOut();
+        event.begin();
+        long start = System.nanoTime();
+        int recipients = sessions.size() - 1;
+        boolean direct = server.useDirectBuffer(recipients + 1);
+        sessions.forEach(client -> {
+            //Comparing session ids instead of usernames keeps string work off the fan-out
+            if (client.loggedIn && client.id != id) {
+                client.deliver(message, direct);
+            }
+        });
+        server.getMetrics().fanOut(recipients, start);
+        fannedOut(event, "", recipients);
+        if (message.getType() == Protocol.GROUP) {
+            server.record(message, null);
+            server.forwardGroup(message);
+        }
+    }
+
+    /**
+     * Ends a FanOut flight recorder event, if it is being recorded.
+     * @param room The room, empty for group chat.
+     */
+    private void fannedOut(ChatEvents.FanOut event, String room, int recipients) {
+        if (event.shouldCommit()) {
+            event.sender = username;
+            event.room = room;
+            event.recipients = recipients;
+            event.commit();
+        }
+    }
+
+    /**
+     * Sends a message to every member of a room except the sender, the rest
+     * of the server is never touched.
+     * @param room The room, the sender must be a member.
+     * @param message The message.
+     */
+    public void roomChat(Room room, Message message) {
+        ChatEvents.FanOut event = new ChatEvents.FanOut();
+        event.begin();
+        long start = System.nanoTime();
+        int recipients = room.size() - 1;
+        boolean direct = server.useDirectBuffer(recipients + 1);
+        room.forEach(client -> {
+            if (client.loggedIn && client.id != id) {
+                client.deliver(message, direct);
             }
+        });
+        server.getMetrics().fanOut(recipients, start);
+        fannedOut(event, room.getName(), recipients);
+        if (message.getType() == Protocol.ROOM) {
+            server.record(message, null);
+        }
+    }
+
+    /**
+     * Sends a message from the text protocol to a room. The message must be
+     * prefixed with '#', the room name and a space.
+     * @param message The message format should be "#room message".
+     */
+    private void roomMessage(String message) {
+        String name = message.substring(1, message.indexOf(" "));
+        message = message.substring(message.indexOf(" ") + 1);
+        Room.Membership membership = rooms.get(name);
+        if (membership == null) {
+            communicate("You are not in #" + name + ".");
+        } else if (message.equals("")) {
+            communicate("No message attached");
+        } else {
+            roomChat(membership.getRoom(), Message.room(this, membership.getRoom(), message));
         }
     }
 
+    /**
+     * Gets the room name out of the argument of /join or /leave, the '#' is optional.
+     */
+    private static String roomName(String argument) {
+        String name = argument.trim();
+        return name.startsWith("#") ? name.substring(1) : name;
+    }
+
 /**
  * Sends a private message to a specified client. The message must be prefixed
  * with the '@' symbol followed by the recipient's username and a space.
@@ -119,59 +532,113 @@ public class ClientHandler implements Runnable {
             return;
         }
 
+        ChatEvents.WhisperRouted routed = new ChatEvents.WhisperRouted();
+        routed.begin();
         String receiver = message.substring(1, message.indexOf(" "));
         message = message.substring(message.indexOf(" ") + 1);
         ClientHandler client = clientList.get(receiver);
         //Deal with any edge cases
-        if (client == null) {
-            communicate("Client not found");
-        } else if (message.equals("")) {
+        if (message.equals("")) {
             communicate("No message attached");
+        } else if (client == null && server.forwardWhisper(this, receiver, message)) {
+            //Logged in on another node of the cluster, that node delivers it
+            whisperRouted(routed, receiver, "cluster");
+        } else if (client == null && !receiver.isEmpty()) {
+            //Kept until they log in
+            server.storeOffline(this, receiver, message);
+            whisperRouted(routed, receiver, "offline");
+        } else if (client == null || !client.loggedIn) {
+            communicate("Client not found");
+            whisperRouted(routed, receiver, "not found");
         } else {
-            //Send the message to the receiver, again synchrozing to avoid race conditions etc.
-            synchronized (client) {
-                try {
-                    client.writer.write("Whisper from " + this.username + ": " + message);
-                    client.writer.newLine();
-                    client.writer.flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            //Send the message to the receiver, it goes through their queue so we never wait on their socket
+            long start = System.nanoTime();
+            Message whisper = Message.whisper(this, client, message);
+            client.deliver(whisper);
+            server.getMetrics().fanOut(1, start);
+            whisperRouted(routed, receiver, "local");
+            server.record(whisper, client);
         }
-    }   
+    }
+
+    private void whisperRouted(ChatEvents.WhisperRouted event, String recipient, String route) {
+        if (event.shouldCommit()) {
+            event.sender = username;
+            event.recipient = recipient;
+            event.route = route;
+            event.commit();
+        }
+    }
 
     /**
      * Removes the client from the ConcurrentHashMap and broadcasts a message to
      * all other clients that the client has left the group chat. This method is
      * called when the client sends the /exit command or when the client's
-     * connection is terminated.
+     * connection is terminated. Removing a client twice does nothing.
      */
     public void removeClient() {
-        String exitMessage = username + " has left the group chat.";
-        String leavingmsg = "LEAVING: " + username;
-        synchronized (clientList) {
-            clientList.remove(username);
+        ReentrantLock membershipLock = server.getMembershipLock();
+        membershipLock.lock();
+        try {
+            if (!clientList.remove(username, this)) {
+                return;
+            }
+            sessions.unregister(this);
+            //The LEAVE delta lets the clients remove the former client locally
+            server.leave(this);
+        } finally {
+            membershipLock.unlock();
+        }
+        server.leaveAllRooms(this);
+        deliver(Message.terminate());
+        ChatEvents.ClientRemoved event = new ChatEvents.ClientRemoved();
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.sessionId = id;
+            event.dropped = getDroppedMessages();
+            event.commit();
         }
-        //We send 2 messages because one lets the clients know to remove the former client locally
-        groupChat(leavingmsg, true);
-        groupChat(exitMessage, true);
-        communicate("terminate");
     }
 
     /**
-     * Sends a communication message to the client through the output stream.
-     * This method writes the message, adds a newline, and flushes the stream
-     * to ensure the message is sent.
+     * Sends a communication message to the client. The message is put on the
+     * client's outbound queue (or the connection's queue for the non-blocking
+     * server) and written out later, so this never waits on the client's socket.
+     * If the queue is full and the overflow policy is DISCONNECT the client is
+     * disconnected.
      * @param comms The message to be sent to the client.
      */
     public void communicate(String comms) {
-        try {
-            writer.write(comms);
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        deliver(Message.notice(comms));
+    }
+
+    /**
+     * Sends a message to the client in whichever protocol it speaks.
+     * @param message The message, which may be shared with other clients.
+     */
+    public void deliver(Message message) {
+        deliver(message, false);
+    }
+
+    /**
+     * Sends a message to the client in whichever protocol it speaks.
+     * @param message The message, which may be shared with other clients.
+     * @param direct Whether the frame should be built in a direct buffer, for big fan-outs.
+     */
+    public void deliver(Message message, boolean direct) {
+        deliver(message.frame(binary, direct));
+    }
+
+    /**
+     * Sends an already encoded message to the client. The same frame can be
+     * delivered to any number of clients.
+     * @param frame The encoded message.
+     */
+    public void deliver(Frame frame) {
+        boolean queued = connection != null ? connection.send(frame) : outbound.offer(frame);
+        if (!queued && !disconnected) {
+            System.out.println("Disconnecting " + username + ", it is not reading its messages.");
+            disconnect();
         }
     }
 }
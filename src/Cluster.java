@@ -0,0 +1,456 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class connects several server processes into one chat. Every node
+ * knows the cluster address of every node (the same list, in the same order,
+ * on all of them) and its own place in that list.
+ *
+ * Usernames stay unique across the cluster: every name is owned by one node,
+ * picked by its hash, and a node asks the owner to claim a name before it
+ * lets a client log in with it. Every node tells the others who joined and
+ * left its clients, so each node knows on which node every user is. A group
+ * message is sent once to every other node, which fans it out to its own
+ * clients, and a whisper goes only to the node of the recipient.
+ *
+ * Each node keeps one persistent connection to every other node for what it
+ * sends, and accepts theirs for what it receives. Everything for a node goes
+ * through one queue, and its writer thread writes whatever has piled up and
+ * flushes once, so a busy link sends few big writes instead of many small
+ * ones. Links that drop are reconnected, and a node that reconnects first
+ * sends the full list of its users again.
+ *
+ * Messages between nodes are frames of the binary client protocol with their
+ * own types. Rooms, history, the journal and offline mailboxes stay per node.
+ */
+public class Cluster {
+    //Frame types between nodes, the sender id of a HELLO is the sending node
+    public static final byte HELLO = 64;
+    //Payload: sender name, text
+    public static final byte GROUP = 65;
+    //Payload: sender name, recipient name, text
+    public static final byte WHISPER = 66;
+    //Payload: the name of the user who joined or left
+    public static final byte JOIN = 67;
+    public static final byte LEAVE = 68;
+    //The recipient id is a request id that comes back in the answer, the payload the name
+    public static final byte CLAIM = 69;
+    public static final byte CLAIMED = 70;
+    public static final byte TAKEN = 71;
+    public static final byte RELEASE = 72;
+
+    //How long a link waits before it tries to connect again, in milliseconds
+    private static final int RECONNECT_MILLIS = 1000;
+    //Most frames written before one flush
+    private static final int MAX_BATCH = 1024;
+    //Frames queued for one node before new ones are dropped
+    private static final int LINK_CAPACITY = 65536;
+
+    private final Server server;
+    private final int nodeId;
+    private final List<InetSocketAddress> nodes;
+    private final long claimTimeoutMillis;
+    private final PeerLink[] links;
+    //Names this node owns and the node each one is claimed by
+    private final ConcurrentHashMap<String, Integer> claims = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequest = new AtomicInteger();
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+
+    /**
+     * @param server The server of this node.
+     * @param nodeId This node's place in the list of nodes.
+     * @param nodes The cluster address of every node.
+     * @param claimTimeoutMillis How long a login waits for the owner of its name.
+     */
+    public Cluster(Server server, int nodeId, List<InetSocketAddress> nodes, long claimTimeoutMillis) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.nodes = nodes;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.links = new PeerLink[nodes.size()];
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node != nodeId) {
+                links[node] = new PeerLink(node, nodes.get(node));
+            }
+        }
+    }
+
+    /**
+     * Builds the cluster from the chat.cluster property, a comma separated
+     * list of host:port cluster addresses, and chat.nodeId, this node's place
+     * in it.
+     * @return The cluster, or null if chat.cluster isn't set.
+     */
+    public static Cluster fromProperties(Server server) {
+        String cluster = System.getProperty("chat.cluster", "");
+        if (cluster.isEmpty()) {
+            return null;
+        }
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String node : cluster.split(",")) {
+            String address = node.trim();
+            int colon = address.lastIndexOf(':');
+            nodes.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        int nodeId = Integer.getInteger("chat.nodeId", 0);
+        if (nodeId < 0 || nodeId >= nodes.size()) {
+            throw new IllegalArgumentException("chat.nodeId " + nodeId + " is not in chat.cluster");
+        }
+        return new Cluster(server, nodeId, nodes, Long.getLong("chat.clusterTimeoutMillis", 2000));
+    }
+
+    /**
+     * Starts listening for the other nodes and connecting to them.
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(nodes.get(nodeId).getPort()));
+        Thread acceptor = new Thread(() -> acceptNodes(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            if (link != null) {
+                Thread writer = new Thread(link, "cluster-link-" + link.node);
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        System.out.println("Cluster node " + nodeId + " of " + nodes.size() + " listening on " + nodes.get(nodeId) + ".");
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Finds the node that owns a name.
+     */
+    private int owner(String name) {
+        return Math.floorMod(name.hashCode(), nodes.size());
+    }
+
+    /**
+     * Claims a name for a client of this node, asking the node that owns it.
+     * Blocks until the owner answers.
+     * @param name The username.
+     * @return true if the name is now this node's, false if it is taken.
+     * @throws IOException If the owner can't be reached or didn't answer in time.
+     */
+    public boolean claim(String name) throws IOException {
+        int owner = owner(name);
+        if (owner == nodeId) {
+            Integer holder = claims.putIfAbsent(name, nodeId);
+            return holder == null || holder == nodeId;
+        }
+        PeerLink link = links[owner];
+        if (!link.connected) {
+            throw new IOException("Node " + owner + " is not connected");
+        }
+        int request = nextRequest.incrementAndGet() & Integer.MAX_VALUE;
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        pendingClaims.put(request, answer);
+        try {
+            byte[] payload = encode(name);
+            link.send(Protocol.encode(CLAIM, nodeId, request, null, payload, 0, payload.length));
+            return answer.get(claimTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            throw new IOException("Node " + owner + " did not answer a claim", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while claiming a name", e);
+        } finally {
+            pendingClaims.remove(request);
+        }
+    }
+
+    /**
+     * Gives up a name claimed with claim() once its client has left.
+     */
+    public void release(String name) {
+        int owner = owner(name);
+        if (owner == nodeId) {
+            claims.remove(name, nodeId);
+        } else {
+            links[owner].send(frame(RELEASE, name));
+        }
+    }
+
+    /**
+     * Tells every other node that a client of this node joined or left. Must
+     * be called with the membership lock held, so that it can't cross with
+     * the list of users a reconnecting link sends.
+     */
+    public void publishPresence(String name, boolean join) {
+        broadcast(frame(join ? JOIN : LEAVE, name));
+    }
+
+    /**
+     * Sends a group message from a client of this node to every other node.
+     */
+    public void forwardGroup(Message message) {
+        byte[] sender = message.getSender().getNameBytes();
+        byte[] text = message.textBytes();
+        broadcast(Protocol.encode(GROUP, nodeId, 0, sender, text, 0, text.length));
+    }
+
+    /**
+     * Sends a whisper to the node of its recipient.
+     * @param node The node the recipient is on.
+     */
+    public void forwardWhisper(int node, ClientHandler sender, String recipient, String text) {
+        byte[] names = concat(sender.getNameBytes(), encode(recipient));
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        links[node].send(Protocol.encode(WHISPER, nodeId, 0, names, bytes, 0, bytes.length));
+    }
+
+    private void broadcast(byte[] frame) {
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.send(frame);
+            }
+        }
+    }
+
+    private byte[] frame(byte type, String name) {
+        byte[] payload = encode(name);
+        return Protocol.encode(type, nodeId, 0, null, payload, 0, payload.length);
+    }
+
+    private static byte[] encode(String name) {
+        return Protocol.encodeName(name);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    private void acceptNodes(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readNode(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads everything another node sends over its link to this one. The
+     * first frame says which node it is. When the link closes, the node is
+     * treated as gone until it connects again: its users are taken off the
+     * list and the names it held here are freed.
+     */
+    private void readNode(Socket socket) {
+        int node = -1;
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+            Protocol.Inbound frame = new Protocol.Inbound();
+            frame.read(in);
+            if (frame.type != HELLO || frame.sender < 0 || frame.sender >= nodes.size() || frame.sender == nodeId) {
+                System.out.println("Cluster: closed a link that didn't start with a valid HELLO.");
+                return;
+            }
+            node = frame.sender;
+            //It may have restarted, the users it had before are about to be sent again
+            nodeDown(node);
+            System.out.println("Cluster: node " + node + " connected.");
+            while (true) {
+                frame.read(in);
+                framesReceived.increment();
+                onFrame(node, frame);
+            }
+        } catch (EOFException e) {
+            //The other node closed the link
+        } catch (IOException e) {
+            System.out.println("Cluster: lost the link from node " + node + ": " + e.getMessage());
+        }
+        if (node >= 0) {
+            System.out.println("Cluster: node " + node + " disconnected.");
+            nodeDown(node);
+        }
+    }
+
+    private void onFrame(int node, Protocol.Inbound frame) throws IOException {
+        switch (frame.type) {
+            case GROUP:
+                server.deliverRemoteGroup(frame.readName(), frame.remainingText());
+                break;
+            case WHISPER:
+                String sender = frame.readName();
+                String recipient = frame.readName();
+                server.deliverRemoteWhisper(sender, recipient, frame.remainingText());
+                break;
+            case JOIN:
+                String joined = frame.readName();
+                if (owner(joined) == nodeId) {
+                    //After this node restarts, the joins other nodes send again rebuild its claims
+                    claims.putIfAbsent(joined, node);
+                }
+                server.remotePresence(joined, node, true);
+                break;
+            case LEAVE:
+                server.remotePresence(frame.readName(), node, false);
+                break;
+            case CLAIM:
+                String name = frame.readName();
+                Integer holder = claims.putIfAbsent(name, node);
+                boolean claimed = holder == null || holder == node;
+                links[node].send(Protocol.encode(claimed ? CLAIMED : TAKEN, nodeId, frame.recipient, null, new byte[0], 0, 0));
+                break;
+            case CLAIMED:
+            case TAKEN:
+                CompletableFuture<Boolean> answer = pendingClaims.get(frame.recipient);
+                if (answer != null) {
+                    answer.complete(frame.type == CLAIMED);
+                }
+                break;
+            case RELEASE:
+                claims.remove(frame.readName(), node);
+                break;
+            default:
+                System.out.println("Cluster: unknown frame type " + frame.type + " from node " + node + ".");
+        }
+    }
+
+    /**
+     * Forgets everything about a node whose link has closed.
+     */
+    private void nodeDown(int node) {
+        claims.values().removeIf(holder -> holder == node);
+        server.remoteNodeDown(node);
+    }
+
+    /**
+     * Prints how many frames went between nodes and in how many writes, if
+     * any did since the last call.
+     */
+    public void printStats() {
+        long sent = framesSent.sumThenReset();
+        long batches = batchesSent.sumThenReset();
+        long received = framesReceived.sumThenReset();
+        long dropped = framesDropped.sumThenReset();
+        if (sent > 0 || received > 0 || dropped > 0) {
+            System.out.printf("Cluster: %d frames sent in %d batches, %d received, %d dropped.%n",
+                    sent, batches, received, dropped);
+        }
+    }
+
+    /*
+     * The persistent connection this node sends to another node over. Only
+     * its own thread writes to the socket, everyone else queues frames.
+     */
+    private final class PeerLink implements Runnable {
+        private final int node;
+        private final InetSocketAddress address;
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_CAPACITY);
+        //Frames are only queued while connected, the other node gets the full user list when it reconnects
+        private volatile boolean connected;
+
+        PeerLink(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        void send(byte[] frame) {
+            if (frame.length > Protocol.MAX_FRAME) {
+                System.out.println("Cluster: a frame of " + frame.length + " bytes is too big for a link, dropped.");
+                framesDropped.increment();
+            } else if (connected && !queue.offer(frame)) {
+                framesDropped.increment();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean reported = false;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, RECONNECT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    reported = false;
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+                    startSending();
+                    List<byte[]> batch = new ArrayList<>();
+                    while (true) {
+                        byte[] first = queue.take();
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (byte[] frame : batch) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                        framesSent.add(batch.size());
+                        batchesSent.increment();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    connected = false;
+                    if (!reported) {
+                        System.out.println("Cluster: can't reach node " + node + " at " + address + ", retrying.");
+                        reported = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Queues the HELLO and a JOIN for every user of this node, then lets
+         * other threads queue frames. Done under the membership lock, so no
+         * join or leave can slip in between the list and the frames after it.
+         */
+        private void startSending() {
+            ReentrantLock membershipLock = server.getMembershipLock();
+            membershipLock.lock();
+            try {
+                queue.clear();
+                queue.add(Protocol.encode(HELLO, nodeId, 0, null, new byte[0], 0, 0));
+                server.getSessions().forEach(handler -> {
+                    if (handler.isLoggedIn()) {
+                        queue.offer(frame(JOIN, handler.getUsername()));
+                    }
+                });
+                connected = true;
+            } finally {
+                membershipLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This class represents a message that has already been encoded for the wire
+ * (UTF-8 plus the newline, or a binary protocol frame). A frame is never
+ * changed after it is made, so one frame can be put on the queue of every
+ * recipient of a broadcast instead of building and encoding the same string
+ * once per recipient.
+ */
+public final class Frame {
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    //System.nanoTime() when it was encoded, for the delivery latency
+    private final long createdAt = System.nanoTime();
+
+    private Frame(byte[] bytes, ByteBuffer buffer) {
+        this.bytes = bytes;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Encodes a line into a heap frame.
+     * @param line The message without the newline.
+     */
+    public static Frame of(String line) {
+        return wrap(encode(line), false);
+    }
+
+    /**
+     * Encodes a line into a frame backed by a direct buffer. Socket channels
+     * copy heap buffers into a temporary direct buffer on every write, so for
+     * a big fan-out it is cheaper to pay for the direct buffer once.
+     * @param line The message without the newline.
+     */
+    public static Frame direct(String line) {
+        return wrap(encode(line), true);
+    }
+
+    /**
+     * Makes a frame out of bytes that are already in wire format, such as a
+     * binary protocol frame. The array must not be changed afterwards.
+     * @param bytes The encoded bytes.
+     * @param direct Whether to copy them into a direct buffer.
+     */
+    public static Frame wrap(byte[] bytes, boolean direct) {
+        if (!direct) {
+            return new Frame(bytes, ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return new Frame(bytes, buffer.asReadOnlyBuffer());
+    }
+
+    private static byte[] encode(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[text.length + 1];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        bytes[text.length] = '\n';
+        return bytes;
+    }
+
+    /**
+     * @return A read-only view of the frame with its own position, so every
+     *         recipient can be written to independently.
+     */
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Writes the frame to a blocking stream.
+     * @param out The client's output stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A lock-free histogram of non-negative values in the style of HdrHistogram.
+ * Values below 256 get a bucket each, above that every power of two is split
+ * into 128 buckets, so any value is kept to within 1% in one fixed array.
+ * Recording is a few atomic adds and never allocates, so it can be done on
+ * the message path from any number of threads at once.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    //Shifts go up to 63 - SUB_BITS for the biggest long
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, value);
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(clamped) - (SUB_BITS + 1));
+        counts.incrementAndGet((shift << SUB_BITS) + (int) (clamped >>> shift));
+        count.increment();
+        sum.add(clamped);
+        max.accumulate(clamped);
+    }
+
+    /**
+     * @return How many values were recorded.
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of all recorded values.
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Finds a percentile of the recorded values. Values recorded while this
+     * runs may or may not be counted.
+     * @param percentile Between 0 and 100.
+     * @return The highest value of the bucket the percentile falls in, or -1 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int index = 0; index < counts.length(); index++) {
+            seen += counts.get(index);
+            if (seen >= rank) {
+                int shift = index < 2 * SUB_BUCKETS ? 0 : (index >> SUB_BITS) - 1;
+                long sub = index - ((long) shift << SUB_BITS);
+                return Math.min(((sub + 1) << shift) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+}
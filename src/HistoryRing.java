@@ -0,0 +1,99 @@
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A fixed number of the most recent chat messages. All the slots are
+ * allocated up front and the oldest message is overwritten in place by the
+ * newest, so keeping history costs no allocation beyond the message itself
+ * and the ring never grows.
+ */
+public class HistoryRing {
+    private final long[] ids;
+    private final byte[] types;
+    private final long[] timestamps;
+    private final String[] senders;
+    private final String[] targets;
+    private final String[] texts;
+    //Slot the next message goes in
+    private int next;
+    private int size;
+    //Guards everything above, a ReentrantLock so virtual threads don't pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param capacity The number of messages kept, must be at least 1.
+     */
+    public HistoryRing(int capacity) {
+        this.ids = new long[capacity];
+        this.types = new byte[capacity];
+        this.timestamps = new long[capacity];
+        this.senders = new String[capacity];
+        this.targets = new String[capacity];
+        this.texts = new String[capacity];
+    }
+
+    /**
+     * Adds a message, overwriting the oldest one if the ring is full.
+     * @param id The message's journal id, 0 if there is no journal.
+     * @param type The Protocol type of the message.
+     * @param timestamp When it was sent, in milliseconds since the epoch.
+     * @param sender The sender's name.
+     * @param target The room or recipient name, empty for group chat.
+     * @param text The text.
+     */
+    public void add(long id, byte type, long timestamp, String sender, String target, String text) {
+        lock.lock();
+        try {
+            ids[next] = id;
+            types[next] = type;
+            timestamps[next] = timestamp;
+            senders[next] = sender;
+            targets[next] = target;
+            texts[next] = text;
+            next = (next + 1) % texts.length;
+            if (size < texts.length) {
+                size++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the messages in the ring, oldest first, to the end of a list.
+     */
+    public void copyTo(List<MessageJournal.Record> records) {
+        lock.lock();
+        try {
+            int slot = (next - size + texts.length) % texts.length;
+            for (int i = 0; i < size; i++) {
+                records.add(new MessageJournal.Record(ids[slot], timestamps[slot], types[slot], senders[slot],
+                        targets[slot], texts[slot]));
+                slot = (slot + 1) % texts.length;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The lowest journal id in the ring, or 0 if it is empty. Two
+     *         senders can add their messages in the opposite order to their
+     *         ids, so this isn't always the id of the oldest slot.
+     */
+    public long lowestId() {
+        lock.lock();
+        try {
+            long lowest = 0;
+            for (int i = 0, slot = (next - size + texts.length) % texts.length; i < size; i++) {
+                if (lowest == 0 || ids[slot] < lowest) {
+                    lowest = ids[slot];
+                }
+                slot = (slot + 1) % texts.length;
+            }
+            return lowest;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This class represents a message on its way to one or more clients. Clients
+ * speak either the legacy text protocol or the binary protocol, so a message
+ * can turn itself into either kind of Frame. Each kind is built at most once,
+ * the first time a recipient needs it, and then shared by every recipient that
+ * speaks that protocol. A message from a binary client keeps its payload as
+ * bytes, so if all recipients are binary it is never turned into a String.
+ *
+ * A message is built and fanned out by one thread and is not thread safe. If
+ * its payload points into a read buffer it is only valid during the fan-out.
+ */
+public final class Message {
+    private final byte type;
+    private final ClientHandler sender;
+    private final int recipient;
+    private final Room room;
+    //Line for text clients when it isn't simply built from the type and the text
+    private final String line;
+    private String text;
+    private byte[] payload;
+    private int offset;
+    private int length;
+    private Frame textFrame;
+    private Frame binaryFrame;
+
+    private Message(byte type, ClientHandler sender, int recipient, String line, String text,
+            byte[] payload, int offset, int length) {
+        this(type, sender, recipient, null, line, text, payload, offset, length);
+    }
+
+    private Message(byte type, ClientHandler sender, int recipient, Room room, String line, String text,
+            byte[] payload, int offset, int length) {
+        this.type = type;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.room = room;
+        this.line = line;
+        this.text = text;
+        this.payload = payload;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * A group chat message, shown to text clients as "sender: text".
+     */
+    public static Message group(ClientHandler sender, String text) {
+        return new Message(Protocol.GROUP, sender, 0, null, text, null, 0, 0);
+    }
+
+    /**
+     * A group chat message from a binary client, the payload is the UTF-8 text.
+     */
+    public static Message group(ClientHandler sender, byte[] payload, int offset, int length) {
+        return new Message(Protocol.GROUP, sender, 0, null, null, payload, offset, length);
+    }
+
+    /**
+     * A whisper, shown to text clients as "Whisper from sender: text".
+     */
+    public static Message whisper(ClientHandler sender, ClientHandler recipient, String text) {
+        return new Message(Protocol.WHISPER, sender, recipient.getId(), null, text, null, 0, 0);
+    }
+
+    /**
+     * A whisper from a binary client, the payload is the UTF-8 text.
+     */
+    public static Message whisper(ClientHandler sender, ClientHandler recipient, byte[] payload, int offset, int length) {
+        return new Message(Protocol.WHISPER, sender, recipient.getId(), null, null, payload, offset, length);
+    }
+
+    /**
+     * A message to a room, shown to text clients as "#room sender: text".
+     */
+    public static Message room(ClientHandler sender, Room room, String text) {
+        return new Message(Protocol.ROOM, sender, room.getId(), room, null, text, null, 0, 0);
+    }
+
+    /**
+     * A message to a room from a binary client, the payload is the UTF-8 text.
+     */
+    public static Message room(ClientHandler sender, Room room, byte[] payload, int offset, int length) {
+        return new Message(Protocol.ROOM, sender, room.getId(), room, null, null, payload, offset, length);
+    }
+
+    /**
+     * A line from the server, such as "alice has joined the chat." or an error.
+     */
+    public static Message notice(String text) {
+        return new Message(Protocol.NOTICE, null, 0, null, text, null, 0, 0);
+    }
+
+    /**
+     * Tells the client to close the connection.
+     */
+    public static Message terminate() {
+        return new Message(Protocol.TERMINATE, null, 0, "terminate", null, new byte[0], 0, 0);
+    }
+
+    /**
+     * A server message that looks different in the two protocols, such as a
+     * presence update.
+     * @param type The binary frame type.
+     * @param line The line sent to text clients.
+     * @param payload The payload of the binary frame.
+     */
+    public static Message control(byte type, String line, byte[] payload) {
+        return control(type, 0, line, payload);
+    }
+
+    /**
+     * A server message that looks different in the two protocols and is
+     * about something with an id, such as the room a client just joined.
+     * @param type The binary frame type.
+     * @param recipient The id that goes in the recipient field of the binary frame.
+     * @param line The line sent to text clients.
+     * @param payload The payload of the binary frame.
+     */
+    public static Message control(byte type, int recipient, String line, byte[] payload) {
+        return new Message(type, null, recipient, line, null, payload, 0, payload.length);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public ClientHandler getSender() {
+        return sender;
+    }
+
+    /**
+     * @return The room of a room message, otherwise null.
+     */
+    public Room getRoom() {
+        return room;
+    }
+
+    /**
+     * @return A copy of the UTF-8 text that stays valid after the fan-out.
+     */
+    public byte[] textBytes() {
+        if (payload == null) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(payload, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * @return The text of the message, decoded from the payload the first time it is needed.
+     */
+    public String text() {
+        if (text == null) {
+            text = new String(payload, offset, length, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * Gets the frame for one protocol, building it if no earlier recipient needed it.
+     * @param binary Whether the recipient speaks the binary protocol.
+     * @param direct Whether a newly built frame should be backed by a direct buffer.
+     */
+    public Frame frame(boolean binary, boolean direct) {
+        if (binary) {
+            if (binaryFrame == null) {
+                binaryFrame = Frame.wrap(encodeBinary(), direct);
+            }
+            return binaryFrame;
+        }
+        if (textFrame == null) {
+            textFrame = direct ? Frame.direct(legacyLine()) : Frame.of(legacyLine());
+        }
+        return textFrame;
+    }
+
+    private String legacyLine() {
+        if (line != null) {
+            return line;
+        }
+        switch (type) {
+            case Protocol.GROUP:
+                return sender.getUsername() + ": " + text();
+            case Protocol.WHISPER:
+                return "Whisper from " + sender.getUsername() + ": " + text();
+            case Protocol.ROOM:
+                return "#" + room.getName() + " " + sender.getUsername() + ": " + text();
+            default:
+                return text();
+        }
+    }
+
+    private byte[] encodeBinary() {
+        if (payload == null) {
+            payload = text.getBytes(StandardCharsets.UTF_8);
+            offset = 0;
+            length = payload.length;
+        }
+        //Chat messages carry the sender's name so a client can show them before it has the sender in its list
+        byte[] prefix = null;
+        if (type == Protocol.GROUP || type == Protocol.WHISPER) {
+            prefix = sender.getNameBytes();
+        } else if (type == Protocol.ROOM) {
+            byte[] roomName = room.getNameBytes();
+            byte[] senderName = sender.getNameBytes();
+            prefix = new byte[roomName.length + senderName.length];
+            System.arraycopy(roomName, 0, prefix, 0, roomName.length);
+            System.arraycopy(senderName, 0, prefix, roomName.length, senderName.length);
+        }
+        int senderId = sender == null ? 0 : sender.getId();
+        return Protocol.encode(type, senderId, recipient, prefix, payload, offset, length);
+    }
+}
@@ -0,0 +1,564 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * An append-only log of every chat message (group, room and whisper) kept
+ * on disk in fixed-size segment files that are memory-mapped with
+ * FileChannel.map. Senders only take the next message id and put the
+ * message on a lock-free queue, a dedicated writer thread copies it into the
+ * mapped segment and commits everything it found on the queue together
+ * (group commit), so the broadcast path never waits on the disk.
+ *
+ * A record in a segment looks like this, all numbers big-endian:
+ *
+ *   int length | int crc | long id | long timestamp | type | sender | target | text
+ *
+ * where length covers everything after itself, the CRC32 covers everything
+ * after the crc, and sender, target (room or whisper recipient, empty for
+ * group chat) and text are varint length + UTF-8. Segment files are
+ * preallocated with zeros, so a length of 0 marks the end of the data.
+ * Files are named after the id of their first record.
+ *
+ * A sparse index (one entry every INDEX_INTERVAL records) finds a record by
+ * id or by timestamp without scanning everything. It is kept in memory and
+ * rebuilt with one pass over the segments when the server starts, which is
+ * also when a torn record at the end of the last segment is cut off.
+ */
+public class MessageJournal {
+
+    /*
+     * When the writer forces the mapped segment to disk.
+     */
+    public enum FsyncPolicy {
+        //After every group commit, nothing acknowledged is ever lost
+        ALWAYS,
+        //At most once per fsync interval, a crash loses up to one interval
+        INTERVAL,
+        //Never, the OS writes the pages out whenever it likes
+        NEVER
+    }
+
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER = 4 + 4 + 8 + 8 + 1;
+    //Every this many records get an entry in the sparse index
+    private static final int INDEX_INTERVAL = 64;
+    //Most records written before one commit, so a flood can't delay the fsync forever
+    private static final int MAX_BATCH = 4096;
+    //Target of a group chat message
+    private static final byte[] NO_TARGET = Protocol.encodeName("");
+
+    /*
+     * A message read back from the journal.
+     */
+    public static final class Record {
+        public final long id;
+        public final long timestamp;
+        public final byte type;
+        public final String sender;
+        public final String target;
+        public final String text;
+
+        Record(long id, long timestamp, byte type, String sender, String target, String text) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.sender = sender;
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    /*
+     * A message waiting on the queue for the writer.
+     */
+    private static final class Entry {
+        final long id;
+        final byte type;
+        final byte[] sender;
+        final byte[] target;
+        final byte[] text;
+
+        Entry(long id, byte type, byte[] sender, byte[] target, byte[] text) {
+            this.id = id;
+            this.type = type;
+            this.sender = sender;
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    /*
+     * One mapped segment file. Only the writer writes to it, readers see
+     * everything before the committed end.
+     */
+    private static final class Segment {
+        final long baseId;
+        final File file;
+        final MappedByteBuffer buffer;
+        volatile int end;
+
+        Segment(long baseId, File file, MappedByteBuffer buffer) {
+            this.baseId = baseId;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /*
+     * One entry of the sparse index: where a record starts.
+     */
+    private static final class IndexEntry {
+        final long id;
+        final long timestamp;
+        final Segment segment;
+        final int position;
+
+        IndexEntry(long id, long timestamp, Segment segment, int position) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    //Hands out message ids as messages are queued
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread writer;
+    //Set while the writer is parked, so senders only wake it when it is actually asleep
+    private volatile boolean writerSleeping;
+    private volatile boolean closed;
+
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private final List<IndexEntry> index = new ArrayList<>();
+    private final ReentrantLock indexLock = new ReentrantLock();
+    //Only touched by the writer (and the constructor before it starts)
+    private Segment current;
+    private long nextId = 1;
+    //Entries that were queued before the entry with the id before theirs, see append()
+    private final HashMap<Long, Entry> early = new HashMap<>();
+    //Where the records of the batch being written start in the current segment
+    private int commitStart;
+    private long lastTimestamp;
+    private int sinceIndexed;
+    private long lastFsync = System.nanoTime();
+    private final CRC32 crc = new CRC32();
+    //Last id that was committed, readers never look past it
+    private volatile long lastId;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+
+    /**
+     * Opens the journal in a directory, recovering whatever is already in it,
+     * and starts the writer thread.
+     * @param directory Where the segment files live, created if needed.
+     * @param segmentBytes The size of each segment file.
+     * @param fsyncPolicy When to force written records to disk.
+     * @param fsyncIntervalMillis How often INTERVAL forces them.
+     */
+    public MessageJournal(File directory, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        recover();
+        if (current == null) {
+            current = createSegment(nextId);
+        }
+        sequence.set(nextId);
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        //Commit what is still queued when the server is stopped with Ctrl-C
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "journal-close"));
+    }
+
+    /**
+     * Queues a chat message to be written. Never blocks and never touches
+     * the disk, the writer thread does that. The id is handed out here, so
+     * the caller knows it straight away. Two senders can queue their messages
+     * in the opposite order to their ids, the writer puts them back in order.
+     * @param type The Protocol type of the message (GROUP, WHISPER or ROOM).
+     * @param sender The sender's encoded name.
+     * @param target The encoded room or recipient name, or null for group chat.
+     * @param text The UTF-8 text, must not be changed afterwards.
+     * @return The id the message will have, or 0 if the journal is closed.
+     */
+    public long append(byte type, byte[] sender, byte[] target, byte[] text) {
+        if (closed) {
+            return 0;
+        }
+        long id = sequence.getAndIncrement();
+        queue.offer(new Entry(id, type, sender, target, text));
+        if (writerSleeping) {
+            LockSupport.unpark(writer);
+        }
+        return id;
+    }
+
+    /**
+     * Stops the writer after it has committed everything still queued and
+     * forces the current segment to disk.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            boolean wasClosed = closed;
+            int written = 0;
+            commitStart = current.end;
+            Entry entry;
+            while (written < MAX_BATCH && (entry = queue.poll()) != null) {
+                if (entry.id != nextId) {
+                    //The entry with the id before it is still on its way to the queue
+                    early.put(entry.id, entry);
+                    continue;
+                }
+                do {
+                    write(entry);
+                    written++;
+                } while ((entry = early.remove(nextId)) != null);
+            }
+            if (written > 0) {
+                commit();
+                continue;
+            }
+            if (wasClosed) {
+                current.buffer.force();
+                return;
+            }
+            if (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastFsync >= fsyncIntervalNanos) {
+                current.buffer.force();
+                lastFsync = System.nanoTime();
+            }
+            writerSleeping = true;
+            if (queue.isEmpty() && !closed) {
+                LockSupport.parkNanos(fsyncPolicy == FsyncPolicy.INTERVAL ? fsyncIntervalNanos : TimeUnit.SECONDS.toNanos(1));
+            }
+            writerSleeping = false;
+        }
+    }
+
+    /**
+     * Makes a batch of records visible to readers and forces it to disk if
+     * the fsync policy says so.
+     */
+    private void commit() {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            //Only the bytes written since the last commit, the rest of the mapping is clean
+            current.buffer.force(commitStart, current.end - commitStart);
+            lastFsync = System.nanoTime();
+        } else if (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastFsync >= fsyncIntervalNanos) {
+            current.buffer.force();
+            lastFsync = System.nanoTime();
+        }
+        lastId = nextId - 1;
+        commits.increment();
+    }
+
+    /**
+     * Copies one record into the current segment, moving on to a new segment
+     * if it doesn't fit. If there is no room for it at all its id is skipped,
+     * ids only have to go up.
+     */
+    private void write(Entry entry) {
+        long id = nextId++;
+        byte[] sender = entry.sender;
+        byte[] target = entry.target == null ? NO_TARGET : entry.target;
+        byte[] text = entry.text;
+        int length = HEADER - 4 + sender.length + target.length + Protocol.varintSize(text.length) + text.length;
+        if (length + 4 > segmentBytes) {
+            System.out.println("Journal record " + id + " of " + length + " bytes doesn't fit in a segment, skipped.");
+            return;
+        }
+        if (current.end + 4 + length > segmentBytes) {
+            //Everything in the old segment gets forced before it is left behind
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                current.buffer.force();
+            }
+            try {
+                current = createSegment(id);
+            } catch (IOException e) {
+                System.out.println("Journal record " + id + " skipped, no new segment.");
+                e.printStackTrace();
+                return;
+            }
+            commitStart = 0;
+            sinceIndexed = 0;
+        }
+        //Timestamps never go backwards, so they can be binary searched like ids
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        lastTimestamp = timestamp;
+
+        int position = current.end;
+        ByteBuffer out = current.buffer.duplicate();
+        out.position(position + 8);
+        out.putLong(id);
+        out.putLong(timestamp);
+        out.put(entry.type);
+        out.put(sender);
+        out.put(target);
+        Protocol.writeVarint(out, text.length);
+        out.put(text);
+
+        crc.reset();
+        ByteBuffer body = current.buffer.duplicate();
+        body.position(position + 8).limit(position + 4 + length);
+        crc.update(body);
+        current.buffer.putInt(position + 4, (int) crc.getValue());
+        current.buffer.putInt(position, length);
+        current.end = position + 4 + length;
+
+        if (sinceIndexed++ % INDEX_INTERVAL == 0) {
+            addIndexEntry(new IndexEntry(id, timestamp, current, position));
+        }
+        appended.increment();
+    }
+
+    private Segment createSegment(long baseId) throws IOException {
+        File file = new File(directory, String.format("%020d%s", baseId, SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentBytes);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            Segment segment = new Segment(baseId, file, buffer);
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Maps the existing segments in id order, rebuilds the sparse index and
+     * finds where the last one ends. Anything after the first bad record
+     * (wrong CRC or an id that doesn't go up) is treated as not written.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long baseId = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+            Segment segment = new Segment(baseId, file, buffer);
+            segments.add(segment);
+            int position = 0;
+            int count = 0;
+            while (true) {
+                Record record = readRecord(segment.buffer, position, buffer.capacity());
+                if (record == null || record.id < nextId) {
+                    break;
+                }
+                if (count++ % INDEX_INTERVAL == 0) {
+                    addIndexEntry(new IndexEntry(record.id, record.timestamp, segment, position));
+                }
+                nextId = record.id + 1;
+                lastTimestamp = record.timestamp;
+                position += 4 + buffer.getInt(position);
+            }
+            segment.end = position;
+            current = segment;
+        }
+        lastId = nextId - 1;
+        //Start new records in a fresh segment if the last one was written by a differently sized journal
+        if (current.buffer.capacity() != segmentBytes) {
+            current = createSegment(nextId);
+        }
+        System.out.println("Journal: recovered " + lastId + " messages from " + files.length + " segments.");
+    }
+
+    private void addIndexEntry(IndexEntry entry) {
+        indexLock.lock();
+        try {
+            index.add(entry);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Reads committed messages in id order.
+     * @param fromId The first id wanted, older ones are skipped.
+     * @param max The most messages to return.
+     * @return The messages, empty if there are none from that id on.
+     */
+    public List<Record> read(long fromId, int max) {
+        List<Record> records = new ArrayList<>();
+        long last = lastId;
+        IndexEntry start = floorEntry(fromId, true);
+        if (start == null || fromId > last) {
+            return records;
+        }
+        int segmentIndex = segments.indexOf(start.segment);
+        int position = start.position;
+        while (segmentIndex < segments.size() && records.size() < max) {
+            Segment segment = segments.get(segmentIndex);
+            Record record = readRecord(segment.buffer, position, segment.end);
+            if (record == null) {
+                segmentIndex++;
+                position = 0;
+                continue;
+            }
+            if (record.id > last) {
+                break;
+            }
+            if (record.id >= fromId) {
+                records.add(record);
+            }
+            position += 4 + segment.buffer.getInt(position);
+        }
+        return records;
+    }
+
+    /**
+     * Finds the first message sent at or after a point in time.
+     * @param timestamp Milliseconds since the epoch.
+     * @return Its id, or the id the next message will get if there is none.
+     */
+    public long idAt(long timestamp) {
+        IndexEntry start = floorEntry(timestamp, false);
+        long fromId = start == null ? 1 : start.id;
+        //Between two index entries, so at most INDEX_INTERVAL records are scanned
+        while (true) {
+            List<Record> records = read(fromId, INDEX_INTERVAL);
+            if (records.isEmpty()) {
+                return lastId + 1;
+            }
+            for (Record record : records) {
+                if (record.timestamp >= timestamp) {
+                    return record.id;
+                }
+            }
+            fromId = records.get(records.size() - 1).id + 1;
+        }
+    }
+
+    /**
+     * Binary searches the sparse index for the last entry at or before an
+     * id (or a timestamp).
+     */
+    private IndexEntry floorEntry(long key, boolean byId) {
+        indexLock.lock();
+        try {
+            int low = 0;
+            int high = index.size() - 1;
+            IndexEntry found = null;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                IndexEntry entry = index.get(middle);
+                if ((byId ? entry.id : entry.timestamp) <= key) {
+                    found = entry;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (found == null && !index.isEmpty() && byId) {
+                found = index.get(0);
+            }
+            return found;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the record at a position, checking its length and CRC.
+     * @return The record, or null if there is no valid record there.
+     */
+    private Record readRecord(MappedByteBuffer buffer, int position, int end) {
+        if (position + HEADER > end) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length < HEADER - 4 || position + 4 + length > end) {
+            return null;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + 8).limit(position + 4 + length);
+        CRC32 check = new CRC32();
+        check.update(body);
+        if ((int) check.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(position + 8).limit(position + 4 + length);
+        try {
+            long id = in.getLong();
+            long timestamp = in.getLong();
+            byte type = in.get();
+            String sender = Protocol.readName(in);
+            String target = Protocol.readName(in);
+            String text = Protocol.readName(in);
+            return new Record(id, timestamp, type, sender, target, text);
+        } catch (RuntimeException e) {
+            //A length that points past the record
+            return null;
+        }
+    }
+
+    /**
+     * @return The id of the last committed message, 0 if there are none.
+     */
+    public long getLastId() {
+        return lastId;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * @return The number of messages written since the last call, the count is reset.
+     */
+    public long takeAppended() {
+        return appended.sumThenReset();
+    }
+
+    /**
+     * @return The number of group commits since the last call, the count is reset.
+     */
+    public long takeCommits() {
+        return commits.sumThenReset();
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Counters and histograms of what the server is doing: connections,
+ * messages and bytes in and out, fan-out sizes, how long messages wait in
+ * the outbound queues and take to reach the socket, how long logins take
+ * and how long senders and socket writes are held up.
+ *
+ * Counters are LongAdders and histograms are lock-free Histograms, so
+ * recording never takes a lock or allocates. Reading them is the slow part:
+ * every metric is a named value that is computed when it is read, and the
+ * same names are served as JMX attributes of chat:type=Metrics and as
+ * "name value" lines on http://127.0.0.1:<port>/metrics.
+ */
+public class Metrics implements DynamicMBean {
+    //A sender handing a message to its recipients for longer than this counts as a stall
+    private static final long STALL_MICROS = 1000;
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder sendStalls = new LongAdder();
+    //Recipients of every group, room or whisper message
+    private final Histogram fanOut = new Histogram();
+    //Microseconds a message waits in a client's outbound queue
+    private final Histogram queueLatency = new Histogram();
+    //Microseconds from a message being encoded to it being written to the client's socket
+    private final Histogram deliveryLatency = new Histogram();
+    //Microseconds from accepting a connection to the client being logged in
+    private final Histogram handshake = new Histogram();
+    //Microseconds a sender spends handing a message to its recipients' queues
+    private final Histogram sendTime = new Histogram();
+    //Microseconds one flush (blocking) or gathering write (nio) to a client's socket takes
+    private final Histogram writeTime = new Histogram();
+
+    //Every metric by name, in the order they are listed
+    private final Map<String, LongSupplier> values = new LinkedHashMap<>();
+    //Totals at the last report, for the rates
+    private long lastIn;
+    private long lastOut;
+    private long lastBytesIn;
+    private long lastBytesOut;
+
+    public Metrics(SessionRegistry sessions) {
+        values.put("connections_active", connections::sum);
+        values.put("sessions_active", sessions::size);
+        values.put("messages_in_total", messagesIn::sum);
+        values.put("messages_out_total", messagesOut::sum);
+        values.put("bytes_in_total", bytesIn::sum);
+        values.put("bytes_out_total", bytesOut::sum);
+        values.put("send_stalls_total", sendStalls::sum);
+        addHistogram("fanout_recipients", fanOut);
+        addHistogram("queue_latency_micros", queueLatency);
+        addHistogram("delivery_latency_micros", deliveryLatency);
+        addHistogram("handshake_micros", handshake);
+        addHistogram("send_micros", sendTime);
+        addHistogram("socket_write_micros", writeTime);
+    }
+
+    private void addHistogram(String name, Histogram histogram) {
+        values.put(name + "_count", histogram::count);
+        values.put(name + "_sum", histogram::sum);
+        values.put(name + "_p50", () -> histogram.percentile(50));
+        values.put(name + "_p99", () -> histogram.percentile(99));
+        values.put(name + "_p999", () -> histogram.percentile(99.9));
+        values.put(name + "_max", histogram::max);
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    /**
+     * Counts a line or frame received from a client.
+     */
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Counts bytes read from clients.
+     */
+    public void bytesIn(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts a frame that has been written to a client's socket.
+     * @param frame The frame, its size and age are recorded.
+     * @param now System.nanoTime() when it was written.
+     */
+    public void messageOut(Frame frame, long now) {
+        messagesOut.increment();
+        bytesOut.add(frame.length());
+        deliveryLatency.record((now - frame.getCreatedAt()) / 1000);
+    }
+
+    /**
+     * Records a message handed to its recipients.
+     * @param recipients How many clients it was for.
+     * @param start System.nanoTime() when the sender started handing it out.
+     */
+    public void fanOut(int recipients, long start) {
+        long micros = (System.nanoTime() - start) / 1000;
+        fanOut.record(recipients);
+        sendTime.record(micros);
+        if (micros > STALL_MICROS) {
+            sendStalls.increment();
+        }
+    }
+
+    /**
+     * Records how long a client took to log in.
+     * @param start System.nanoTime() when its connection was accepted.
+     */
+    public void handshake(long start) {
+        handshake.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Records how long a write to a client's socket took.
+     * @param start System.nanoTime() when the write started.
+     */
+    public void socketWrite(long start) {
+        writeTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * @return The histogram the outbound queues record waiting times in.
+     */
+    public Histogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as chat:type=Metrics.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register the metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics as plain text on the loopback interface only, so
+     * they can't be read from other machines.
+     * @param port The port, 0 turns the endpoint off.
+     */
+    public void startEndpoint(int port) {
+        if (port == 0) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            http.start();
+            System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Could not serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Every metric as a "chat_name value" line.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        values.forEach((name, value) -> text.append("chat_").append(name).append(' ')
+                .append(value.getAsLong()).append('\n'));
+        return text.toString();
+    }
+
+    /**
+     * Prints the message and byte rates since the last report and the
+     * delivery latency so far, if anything was sent or received.
+     * @param seconds The time since the last report.
+     */
+    public void printRates(int seconds) {
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        long inBytes = bytesIn.sum();
+        long outBytes = bytesOut.sum();
+        if (in > lastIn || out > lastOut) {
+            System.out.printf("Traffic: %.1f messages/s in, %.1f out, %.1f KB/s in, %.1f out, p99 delivery %.3f ms.%n",
+                    (in - lastIn) / (double) seconds, (out - lastOut) / (double) seconds,
+                    (inBytes - lastBytesIn) / 1024.0 / seconds, (outBytes - lastBytesOut) / 1024.0 / seconds,
+                    deliveryLatency.percentile(99) / 1000.0);
+        }
+        lastIn = in;
+        lastOut = out;
+        lastBytesIn = inBytes;
+        lastBytesOut = outBytes;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongSupplier value = values.get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.getAsLong();
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            LongSupplier value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value.getAsLong()));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name.replace('_', ' '), true, false, false);
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+    }
+}
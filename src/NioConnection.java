@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * This class represents a single client connection in the non-blocking server.
+ * It owns the read and write buffers of the connection and does the line or
+ * binary framing, so the event loop only has to tell it when the channel is
+ * readable or writable.
+ */
+public class NioConnection {
+
+    /*
+     * Which protocol the client speaks, decided by its first byte.
+     */
+    private enum Mode {
+        //Nothing read yet
+        NEW,
+        //Got Protocol.MAGIC, waiting for the version byte
+        VERSION,
+        TEXT,
+        BINARY
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    //Most queued frames written with one gathering write
+    private static final int GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final long openedAt = System.nanoTime();
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    //Only ever touched by the event loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private Mode mode = Mode.NEW;
+    //The partial line, or the partial frames in binary mode
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private final Protocol.Inbound frame = new Protocol.Inbound();
+    //Buffers handed to one gathering write, the first ones may already be partly written
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[GATHER];
+    //The frame each write buffer came from, for the metrics
+    private final Frame[] writeFrames = new Frame[GATHER];
+    private int writeCount;
+
+    //Any thread can queue messages, the event loop writes them out
+    private final OutboundQueue<Frame> writeQueue;
+    private volatile boolean closed;
+    private volatile boolean evicted;
+    //Set while the connection is already waiting in its loop's write queue, so a burst wakes the loop once
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    public NioConnection(SocketChannel channel, NioServer.EventLoop loop, OutboundQueue<Frame> writeQueue) {
+        this.channel = channel;
+        this.loop = loop;
+        this.writeQueue = writeQueue;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    long getOpenedAt() {
+        return openedAt;
+    }
+
+    ClientHandler getHandler() {
+        return handler;
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    public int getQueueDepth() {
+        return writeQueue.size();
+    }
+
+    public long getDroppedMessages() {
+        return writeQueue.getDropped();
+    }
+
+    /**
+     * Queues an encoded message for the client and wakes up the event loop
+     * to write it to the socket.
+     * @param frame The encoded message, which may be shared with other connections.
+     * @return false if the queue is full and the client should be disconnected.
+     */
+    public boolean send(Frame frame) {
+        if (closed) {
+            return true;
+        }
+        if (!writeQueue.offer(frame)) {
+            return false;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+        return true;
+    }
+
+    /**
+     * Asks the event loop to disconnect this client. Safe to call from any thread.
+     */
+    public void evict() {
+        evicted = true;
+        loop.requestWrite(this);
+    }
+
+    public boolean isBinary() {
+        return mode == Mode.BINARY;
+    }
+
+    /**
+     * Reads whatever is available on the channel and hands every complete
+     * line (or frame) to the server. Lines and frames may be split over
+     * several reads, so partial ones are kept until the rest arrives.
+     * @param server The server that handles the username handshake and the messages.
+     * @return false if the client has closed the connection.
+     * @throws IOException if the channel fails or the client breaks the protocol.
+     */
+    boolean read(NioServer server) throws IOException {
+        int count = channel.read(readBuffer);
+        if (count == -1) {
+            return false;
+        }
+        server.getMetrics().bytesIn(count);
+        readBuffer.flip();
+        negotiate();
+        if (mode == Mode.BINARY) {
+            readFrames(server);
+        } else if (mode == Mode.TEXT) {
+            readLines(server);
+        }
+        readBuffer.clear();
+        return true;
+    }
+
+    /**
+     * Decides the protocol from the first bytes the client sends. A binary
+     * client's MAGIC and version may arrive in separate reads.
+     */
+    private void negotiate() throws IOException {
+        if (mode == Mode.NEW && readBuffer.hasRemaining()) {
+            if ((readBuffer.get(readBuffer.position()) & 0xFF) != Protocol.MAGIC) {
+                mode = Mode.TEXT;
+                return;
+            }
+            readBuffer.get();
+            mode = Mode.VERSION;
+        }
+        if (mode == Mode.VERSION && readBuffer.hasRemaining()) {
+            int version = readBuffer.get() & 0xFF;
+            //Either way the client learns which version the server speaks
+            send(Frame.wrap(new byte[] {(byte) Protocol.MAGIC, Protocol.VERSION}, false));
+            if (version != Protocol.VERSION) {
+                throw new IOException("Unsupported protocol version " + version);
+            }
+            mode = Mode.BINARY;
+        }
+    }
+
+    /**
+     * Appends the read bytes to the pending ones and hands every complete
+     * frame to the server. The frame points into the pending bytes, so
+     * nothing is copied again before it reaches the handler.
+     */
+    private void readFrames(NioServer server) throws IOException {
+        int available = readBuffer.remaining();
+        if (lineLength + available > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + available));
+        }
+        readBuffer.get(line, lineLength, available);
+        lineLength += available;
+
+        int position = 0;
+        while (position < lineLength && !closed) {
+            //Decode the length, it may not have fully arrived yet
+            int length = 0;
+            int cursor = position;
+            int shift = 0;
+            boolean complete = false;
+            while (cursor < lineLength && shift < 32) {
+                int b = line[cursor++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete) {
+                if (shift >= 32) {
+                    throw new IOException("Varint too long");
+                }
+                break;
+            }
+            if (length < 0 || length > Protocol.MAX_FRAME) {
+                throw new IOException("Frame too big: " + length);
+            }
+            if (lineLength - cursor < length) {
+                break;
+            }
+            frame.parse(line, cursor, length);
+            position = cursor + length;
+            server.onFrame(this, frame);
+        }
+        //Keep the partial frame at the start of the array
+        System.arraycopy(line, position, line, 0, lineLength - position);
+        lineLength -= position;
+    }
+
+    /**
+     * Hands every complete line to the server, keeping a partial line until
+     * its newline arrives.
+     */
+    private void readLines(NioServer server) {
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                //Same as readLine(), a trailing carriage return is not part of the line
+                int length = lineLength;
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                String message = new String(line, 0, length, StandardCharsets.UTF_8);
+                lineLength = 0;
+                server.onLine(this, message);
+                if (closed) {
+                    break;
+                }
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Called by the event loop just before it writes the queued frames. Frames
+     * queued after this schedule another write.
+     */
+    void clearWriteScheduled() {
+        writeScheduled.set(false);
+    }
+
+    /**
+     * Writes as much of the queued output as the socket will take, handing up
+     * to GATHER frames to the socket in one gathering write. If the socket is
+     * full the connection asks to be told when it is writable again.
+     * @param metrics Where the written frames and the time the write took are recorded.
+     */
+    void write(Metrics metrics) throws IOException {
+        while (true) {
+            Frame frame;
+            while (writeCount < GATHER && (frame = writeQueue.poll()) != null) {
+                writeFrames[writeCount] = frame;
+                writeBuffers[writeCount++] = frame.buffer();
+            }
+            if (writeCount == 0) {
+                break;
+            }
+            ChatEvents.RecipientWrite event = new ChatEvents.RecipientWrite();
+            event.begin();
+            long start = System.nanoTime();
+            long bytes = channel.write(writeBuffers, 0, writeCount);
+            metrics.socketWrite(start);
+
+            //Drop the buffers that were written completely
+            long now = System.nanoTime();
+            int written = 0;
+            while (written < writeCount && !writeBuffers[written].hasRemaining()) {
+                metrics.messageOut(writeFrames[written], now);
+                written++;
+            }
+            if (event.shouldCommit()) {
+                event.recipient = handler == null ? "" : handler.getUsername();
+                event.messages = written;
+                event.bytes = (int) bytes;
+                event.flushed = true;
+                event.commit();
+            }
+            System.arraycopy(writeBuffers, written, writeBuffers, 0, writeCount - written);
+            Arrays.fill(writeBuffers, writeCount - written, writeCount, null);
+            System.arraycopy(writeFrames, written, writeFrames, 0, writeCount - written);
+            Arrays.fill(writeFrames, writeCount - written, writeCount, null);
+            writeCount -= written;
+            if (writeCount > 0) {
+                //Socket buffer is full, wait for OP_WRITE
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes the channel. Anything still queued is dropped.
+     */
+    void close() {
+        closed = true;
+        writeQueue.close();
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This class is the non-blocking version of the server. Instead of a thread per
+ * client it runs a small number of event loops (one per core by default), each
+ * with its own Selector, and every connection is handled by exactly one of them.
+ * The chat logic itself still lives in Server and ClientHandler.
+ */
+public class NioServer {
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+
+    public NioServer(Server server, ServerSocketChannel serverChannel, int threads) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts clients on the calling thread,
+     * handing them out to the loops in turn.
+     */
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                //Queued frames are already batched into gathering writes, so Nagle would only add delay
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                server.countAccept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    Metrics getMetrics() {
+        return server.getMetrics();
+    }
+
+    /**
+     * Handles a complete line from a connection. Until the username has been
+     * accepted every line is a username attempt, afterwards it is a chat message.
+     * @param connection The connection the line came from.
+     * @param line The line without the newline.
+     */
+    void onLine(NioConnection connection, String line) {
+        ClientHandler handler = connection.getHandler();
+        if (handler != null) {
+            handler.received((byte) 0, line.length() + 1);
+            handler.broadcastMessage(line);
+            return;
+        }
+        handler = new ClientHandler(connection, server, line, false);
+        if (server.login(handler)) {
+            server.getMetrics().handshake(connection.getOpenedAt());
+            connection.setHandler(handler);
+            server.join(handler);
+        }
+    }
+
+    /**
+     * Handles a complete frame from a connection that speaks the binary
+     * protocol. Until the username has been accepted only LOGIN frames are
+     * allowed.
+     * @param connection The connection the frame came from.
+     * @param frame The frame, only valid until this returns.
+     * @throws IOException if a client that hasn't logged in sends anything but LOGIN.
+     */
+    void onFrame(NioConnection connection, Protocol.Inbound frame) throws IOException {
+        ClientHandler handler = connection.getHandler();
+        if (handler != null) {
+            handler.received(frame.type, Protocol.varintSize(frame.length) + frame.length);
+            handler.onFrame(frame);
+            return;
+        }
+        if (frame.type != Protocol.LOGIN) {
+            throw new IOException("Expected a LOGIN frame");
+        }
+        handler = new ClientHandler(connection, server, frame.payloadText(), true);
+        if (server.login(handler)) {
+            server.getMetrics().handshake(connection.getOpenedAt());
+            connection.setHandler(handler);
+            server.join(handler);
+        }
+    }
+
+    /**
+     * Closes a connection and, if the client had logged in, removes it from the chat.
+     * @param connection The connection to close.
+     */
+    void disconnect(NioConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.close();
+        server.getMetrics().connectionClosed();
+        ClientHandler handler = connection.getHandler();
+        if (handler != null) {
+            handler.removeClient();
+        }
+    }
+
+    /*
+     * A single selector thread. New channels and write requests from other threads
+     * are passed in through queues and the selector is woken up to pick them up.
+     */
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private long lastTimeoutCheck = System.nanoTime();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.offer(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioConnection connection) {
+            pendingWrites.offer(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (serverChannel.isOpen()) {
+                try {
+                    //Wake up at least once a second to drop clients that never logged in
+                    selector.select(1000);
+                    registerNewChannels();
+                    flushPendingWrites();
+                    closeTimedOutHandshakes();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable() && !connection.read(NioServer.this)) {
+                                disconnect(connection);
+                                continue;
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write(server.getMetrics());
+                            }
+                        } catch (IOException e) {
+                            disconnect(connection);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                NioConnection connection = new NioConnection(channel, this,
+                        new OutboundQueue<>(server.getOutboundCapacity(), server.getOverflowPolicy(),
+                                server.getMetrics().getQueueLatency()));
+                try {
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                    server.getMetrics().connectionClosed();
+                }
+            }
+        }
+
+        private void closeTimedOutHandshakes() {
+            long now = System.nanoTime();
+            if (now - lastTimeoutCheck < 1_000_000_000L) {
+                return;
+            }
+            lastTimeoutCheck = now;
+            long timeout = TimeUnit.MILLISECONDS.toNanos(Server.HANDSHAKE_TIMEOUT);
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.getHandler() == null && now - connection.getOpenedAt() > timeout) {
+                    System.out.println("Client timed out before logging in.");
+                    disconnect(connection);
+                }
+            }
+        }
+
+        private void flushPendingWrites() {
+            NioConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (connection.isClosed()) {
+                    continue;
+                }
+                if (connection.isEvicted()) {
+                    disconnect(connection);
+                    continue;
+                }
+                connection.clearWriteScheduled();
+                try {
+                    connection.write(server.getMetrics());
+                } catch (IOException e) {
+                    disconnect(connection);
+                }
+            }
+        }
+    }
+}
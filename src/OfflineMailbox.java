@@ -0,0 +1,424 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * Whispers to users who aren't online, kept on disk until they next log in.
+ *
+ * Everything is in one append-only log file. A MAIL record holds one
+ * whisper, a DELIVERED record says that all mail of a user up to a sequence
+ * number has been delivered or dropped. Records look like the message
+ * journal's, all numbers big-endian:
+ *
+ *   int length | int crc | kind | long seq | long timestamp | recipient | sender | text
+ *
+ * where recipient, sender and text are varint length + UTF-8 (empty in a
+ * DELIVERED record).
+ *
+ * An index in memory maps every username to the position of its mail in
+ * the log, so finding a user's mail at login is one hash lookup however
+ * much mail other users have waiting. The index is rebuilt by reading the
+ * log once at startup, which is also when a torn last record is cut off.
+ * Once most of the log is delivered or expired mail it is rewritten with
+ * only the live records.
+ *
+ * Every user's mailbox holds at most maxMessages whispers (the oldest is
+ * dropped for a new one), all mailboxes together at most maxBytes, and mail
+ * older than the TTL is dropped without being delivered.
+ */
+public class OfflineMailbox {
+    private static final String FILE_NAME = "mailbox.log";
+    private static final byte MAIL = 1;
+    private static final byte DELIVERED = 2;
+    private static final int HEADER = 4 + 4 + 1 + 8 + 8;
+    //The log is only rewritten once it is at least this big
+    private static final long MIN_COMPACT = 1 << 20;
+
+    /*
+     * Where one whisper is in the log.
+     */
+    private static final class Mail {
+        final long seq;
+        final long timestamp;
+        final long position;
+        final int size;
+
+        Mail(long seq, long timestamp, long position, int size) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    private final File file;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private FileChannel channel;
+    //Every user with mail waiting, oldest mail first
+    private final HashMap<String, ArrayDeque<Mail>> boxes = new HashMap<>();
+    //Guards everything above and below, a ReentrantLock so virtual threads don't pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private long nextSeq = 1;
+    //Where the next record goes
+    private long end;
+    //Bytes of MAIL records that are still waiting to be delivered
+    private long liveBytes;
+    private long liveCount;
+    private final CRC32 crc = new CRC32();
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Opens the mailbox log in a directory, building the index from it.
+     * @param directory Where the log lives, created if needed.
+     * @param maxMessages The most whispers kept for one user.
+     * @param maxBytes The most bytes kept for all users together.
+     * @param ttlMillis How long a whisper is kept before it is dropped.
+     */
+    public OfflineMailbox(File directory, int maxMessages, long maxBytes, long ttlMillis) throws IOException {
+        this.file = new File(directory, FILE_NAME);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create mailbox directory " + directory);
+        }
+        this.channel = open(file);
+        load();
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Keeps a whisper for a user who is offline, on disk before this returns.
+     * @param recipient The username the whisper is for.
+     * @param sender The username of the sender.
+     * @param text The whisper.
+     * @return false if there is no room for it.
+     */
+    public boolean store(String recipient, String sender, String text) throws IOException {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            ByteBuffer record = encode(MAIL, nextSeq, now, recipient, sender, text);
+            int size = record.remaining();
+            ArrayDeque<Mail> box = boxes.get(recipient);
+            boolean full = box != null && box.size() >= maxMessages;
+            if (!full && liveBytes + size > maxBytes) {
+                return false;
+            }
+            long position = write(record);
+            if (box == null) {
+                box = new ArrayDeque<>();
+                boxes.put(recipient, box);
+            }
+            box.addLast(new Mail(nextSeq++, now, position, size));
+            liveBytes += size;
+            liveCount++;
+            if (full) {
+                //The oldest whisper makes room for the new one
+                Mail oldest = box.removeFirst();
+                liveBytes -= oldest.size;
+                liveCount--;
+                write(encode(DELIVERED, oldest.seq, now, recipient, "", ""));
+                dropped.increment();
+            }
+            channel.force(false);
+            stored.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes all the mail waiting for a user, oldest first. It is marked as
+     * delivered on disk, so it is only handed out once.
+     * @param recipient The username that has just logged in.
+     * @return The whispers as records of type Protocol.WHISPER, empty if there are none.
+     */
+    public List<MessageJournal.Record> drain(String recipient) throws IOException {
+        List<MessageJournal.Record> mail = new ArrayList<>();
+        lock.lock();
+        try {
+            ArrayDeque<Mail> box = boxes.remove(recipient);
+            if (box == null) {
+                return mail;
+            }
+            long oldest = System.currentTimeMillis() - ttlMillis;
+            for (Mail entry : box) {
+                liveBytes -= entry.size;
+                liveCount--;
+                if (entry.timestamp < oldest) {
+                    dropped.increment();
+                    continue;
+                }
+                MessageJournal.Record record = read(entry);
+                mail.add(new MessageJournal.Record(record.id, record.timestamp, Protocol.WHISPER,
+                        record.sender, record.target, record.text));
+            }
+            write(encode(DELIVERED, box.getLast().seq, System.currentTimeMillis(), recipient, "", ""));
+            channel.force(false);
+            delivered.add(mail.size());
+            compactIfMostlyDead();
+            return mail;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all mail older than the TTL. Expired mail needs no record in the
+     * log, it is dropped again by its timestamp if the log is read back.
+     */
+    public void evictExpired() {
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        lock.lock();
+        try {
+            Iterator<ArrayDeque<Mail>> boxIterator = boxes.values().iterator();
+            while (boxIterator.hasNext()) {
+                ArrayDeque<Mail> box = boxIterator.next();
+                //Mail is in the order it was stored, so only the front can have expired
+                while (!box.isEmpty() && box.peekFirst().timestamp < oldest) {
+                    Mail expired = box.removeFirst();
+                    liveBytes -= expired.size;
+                    liveCount--;
+                    dropped.increment();
+                }
+                if (box.isEmpty()) {
+                    boxIterator.remove();
+                }
+            }
+            compactIfMostlyDead();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer encode(byte kind, long seq, long timestamp, String recipient, String sender, String text) {
+        byte[] recipientBytes = Protocol.encodeName(recipient);
+        byte[] senderBytes = Protocol.encodeName(sender);
+        byte[] textBytes = Protocol.encodeName(text);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + recipientBytes.length + senderBytes.length + textBytes.length);
+        record.putInt(record.capacity() - 4);
+        record.putInt(0);
+        record.put(kind);
+        record.putLong(seq);
+        record.putLong(timestamp);
+        record.put(recipientBytes);
+        record.put(senderBytes);
+        record.put(textBytes);
+        crc.reset();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    /**
+     * Appends a record to the log.
+     * @return Where it was written.
+     */
+    private long write(ByteBuffer record) throws IOException {
+        long position = end;
+        while (record.hasRemaining()) {
+            end += channel.write(record, end);
+        }
+        return position;
+    }
+
+    private MessageJournal.Record read(Mail mail) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(mail.size);
+        while (record.hasRemaining()) {
+            if (channel.read(record, mail.position + record.position()) < 0) {
+                throw new IOException("Mailbox log ends in the middle of a record");
+            }
+        }
+        record.flip();
+        MessageJournal.Record parsed = parse(record);
+        if (parsed == null) {
+            throw new IOException("Corrupt mailbox record at " + mail.position);
+        }
+        return parsed;
+    }
+
+    /**
+     * Checks and parses the record at the position of a buffer, moving the
+     * position past it.
+     * @return The record with its kind as the type, sender and recipient
+     *         (as the target), or null if there is no valid record there.
+     */
+    private static MessageJournal.Record parse(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < HEADER) {
+            return null;
+        }
+        int length = in.getInt(start);
+        if (length < HEADER - 4 || length > in.remaining() - 4) {
+            return null;
+        }
+        ByteBuffer body = in.duplicate();
+        body.position(start + 8).limit(start + 4 + length);
+        CRC32 check = new CRC32();
+        check.update(body);
+        if ((int) check.getValue() != in.getInt(start + 4)) {
+            return null;
+        }
+        ByteBuffer fields = in.duplicate();
+        fields.position(start + 8).limit(start + 4 + length);
+        try {
+            byte kind = fields.get();
+            long seq = fields.getLong();
+            long timestamp = fields.getLong();
+            String recipient = Protocol.readName(fields);
+            String sender = Protocol.readName(fields);
+            String text = Protocol.readName(fields);
+            in.position(start + 4 + length);
+            return new MessageJournal.Record(seq, timestamp, kind, sender, recipient, text);
+        } catch (RuntimeException e) {
+            //A length that points past the record
+            return null;
+        }
+    }
+
+    /**
+     * Reads the whole log once to build the index, leaving out delivered and
+     * expired mail. A record that was only half written is cut off.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Mailbox log " + file + " is too big");
+        }
+        MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        MessageJournal.Record record;
+        while (true) {
+            int position = log.position();
+            if ((record = parse(log)) == null) {
+                break;
+            }
+            nextSeq = Math.max(nextSeq, record.id + 1);
+            ArrayDeque<Mail> box = boxes.get(record.target);
+            if (record.type == MAIL && record.timestamp >= oldest) {
+                if (box == null) {
+                    box = new ArrayDeque<>();
+                    boxes.put(record.target, box);
+                }
+                int recordSize = log.position() - position;
+                box.addLast(new Mail(record.id, record.timestamp, position, recordSize));
+                liveBytes += recordSize;
+                liveCount++;
+            } else if (record.type == DELIVERED && box != null) {
+                while (!box.isEmpty() && box.peekFirst().seq <= record.id) {
+                    Mail gone = box.removeFirst();
+                    liveBytes -= gone.size;
+                    liveCount--;
+                }
+                if (box.isEmpty()) {
+                    boxes.remove(record.target);
+                }
+            }
+        }
+        end = log.position();
+        if (end < size) {
+            System.out.println("Mailbox: cut off " + (size - end) + " bytes of a torn record.");
+            channel.truncate(end);
+        }
+        System.out.println("Mailbox: " + liveCount + " whispers waiting for " + boxes.size() + " users.");
+        compactIfMostlyDead();
+    }
+
+    /**
+     * Rewrites the log with only the mail that is still waiting, once it is
+     * big enough and less than half of it is still needed. The new log is
+     * written next to the old one and renamed over it, so a crash leaves one
+     * or the other.
+     */
+    private void compactIfMostlyDead() throws IOException {
+        if (end < MIN_COMPACT || liveBytes > end / 2) {
+            return;
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        HashMap<String, ArrayDeque<Mail>> moved = new HashMap<>();
+        long position = 0;
+        try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, ArrayDeque<Mail>> box : boxes.entrySet()) {
+                ArrayDeque<Mail> movedBox = new ArrayDeque<>(box.getValue().size());
+                for (Mail mail : box.getValue()) {
+                    long copied = 0;
+                    while (copied < mail.size) {
+                        copied += channel.transferTo(mail.position + copied, mail.size - copied, out);
+                    }
+                    movedBox.addLast(new Mail(mail.seq, mail.timestamp, position, mail.size));
+                    position += mail.size;
+                }
+                moved.put(box.getKey(), movedBox);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Mailbox: compacted the log from " + end + " to " + position + " bytes.");
+        channel = open(file);
+        end = position;
+        boxes.putAll(moved);
+    }
+
+    /**
+     * @return The number of whispers waiting for all users together.
+     */
+    public long getWaiting() {
+        lock.lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of whispers stored since the last call, the count is reset.
+     */
+    public long takeStored() {
+        return stored.sumThenReset();
+    }
+
+    /**
+     * @return The number of whispers delivered since the last call, the count is reset.
+     */
+    public long takeDelivered() {
+        return delivered.sumThenReset();
+    }
+
+    /**
+     * @return The number of whispers dropped (mailbox full or expired) since the last call, the count is reset.
+     */
+    public long takeDropped() {
+        return dropped.sumThenReset();
+    }
+}
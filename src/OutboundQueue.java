@@ -0,0 +1,177 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A bounded queue of messages waiting to be written to one client. Senders
+ * only ever add to it, so a client that reads slowly fills up its own queue
+ * instead of blocking everyone who talks to it. What happens once the queue
+ * is full is decided by the overflow policy.
+ */
+public class OutboundQueue<T> {
+
+    /*
+     * What to do with a new message when the queue is already full.
+     */
+    public enum OverflowPolicy {
+        //Throw away the oldest queued message to make room
+        DROP_OLDEST,
+        //Throw away the new message
+        DROP_NEWEST,
+        //Leave the queue as it is and disconnect the client
+        DISCONNECT
+    }
+
+    private final Object[] items;
+    //System.nanoTime() when each item was queued, only kept if waits are recorded
+    private final long[] queuedAt;
+    private final Histogram waits;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int head;
+    private int count;
+    private boolean closed;
+    private volatile long dropped;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }
+
+    /**
+     * @param waits Where to record how many microseconds every item waited
+     *              in the queue, or null.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, Histogram waits) {
+        this.items = new Object[capacity];
+        this.queuedAt = waits == null ? null : new long[capacity];
+        this.waits = waits;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message to the back of the queue, applying the overflow policy
+     * if it is full. Messages offered after the queue was closed are ignored.
+     * @param item The message.
+     * @return false if the queue is full and the policy says to disconnect the client.
+     */
+    public boolean offer(T item) {
+        long now = waits == null ? 0 : System.nanoTime();
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (count == items.length) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        items[head] = null;
+                        head = (head + 1) % items.length;
+                        count--;
+                        dropped++;
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+            int tail = (head + count) % items.length;
+            items[tail] = item;
+            if (queuedAt != null) {
+                queuedAt[tail] = now;
+            }
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the message at the front of the queue, waiting for one if the
+     * queue is empty. Once the queue is closed the remaining messages are
+     * still handed out before this returns null.
+     * @return The next message, or null if the queue is closed and empty.
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the message at the front of the queue without waiting.
+     * @return The next message, or null if the queue is empty.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeFirst() {
+        if (count == 0) {
+            return null;
+        }
+        T item = (T) items[head];
+        items[head] = null;
+        if (waits != null) {
+            waits.record((System.nanoTime() - queuedAt[head]) / 1000);
+        }
+        head = (head + 1) % items.length;
+        count--;
+        return item;
+    }
+
+    /**
+     * Closes the queue. New messages are ignored and a waiting take() wakes up.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of messages currently waiting in the queue.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * @return The number of messages thrown away by the overflow policy so far.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+}
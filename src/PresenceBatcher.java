@@ -0,0 +1,172 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class collects joins and leaves for a short window and then sends them
+ * to every client as one batch. When thousands of users reconnect at the same
+ * time every client gets one presence update and one "have joined" line per
+ * window instead of one of each per user.
+ */
+public class PresenceBatcher {
+    private final Server server;
+    private final long windowMillis;
+    private final ScheduledExecutorService timer;
+
+    //Guarded by the server's membership lock
+    private final List<ClientHandler> changed = new ArrayList<>();
+    private final List<Boolean> joined = new ArrayList<>();
+    private boolean scheduled;
+
+    //Metrics, read by the server's reporter
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedChanges = new LongAdder();
+    private volatile int largestBatch;
+
+    public PresenceBatcher(Server server, long windowMillis) {
+        this.server = server;
+        this.windowMillis = windowMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records a join or a leave. The first change in a window starts the timer
+     * that sends the batch. Must be called with the membership lock held.
+     * @param clientHandler The client that joined or left.
+     * @param join true for a join, false for a leave.
+     */
+    public void add(ClientHandler clientHandler, boolean join) {
+        changed.add(clientHandler);
+        joined.add(join);
+        if (!scheduled) {
+            scheduled = true;
+            timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Applies every change collected in the window as one presence version and
+     * sends each online client one "PRESENCE:version:+user1,-user2,..." delta
+     * followed by one line saying who joined and who left. Binary clients get
+     * a PRESENCE frame with the version, the number of changes and then each
+     * change as '+' or '-', the session id and the name.
+     */
+    private void flush() {
+        ReentrantLock membershipLock = server.getMembershipLock();
+        membershipLock.lock();
+        try {
+            scheduled = false;
+            if (changed.isEmpty()) {
+                return;
+            }
+            StringBuilder delta = new StringBuilder();
+            ByteArrayOutputStream changes = new ByteArrayOutputStream();
+            List<String> joinedNames = new ArrayList<>();
+            List<String> leftNames = new ArrayList<>();
+            Set<ClientHandler> joiners = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < changed.size(); i++) {
+                ClientHandler clientHandler = changed.get(i);
+                boolean join = joined.get(i);
+                //A client that left before its join was sent is not online any more
+                clientHandler.setPresent(join && clientHandler.isLoggedIn()
+                        && server.getSessions().get(clientHandler.getId()) == clientHandler);
+                if (delta.length() > 0) {
+                    delta.append(',');
+                }
+                delta.append(join ? '+' : '-').append(clientHandler.getUsername());
+                Server.writePresenceChange(changes, clientHandler, join);
+                if (join) {
+                    joinedNames.add(clientHandler.getUsername());
+                    joiners.add(clientHandler);
+                } else {
+                    leftNames.add(clientHandler.getUsername());
+                }
+            }
+            int size = changed.size();
+            changed.clear();
+            joined.clear();
+
+            String announcement = announce(joinedNames, " has joined the chat.", " have joined the chat.");
+            String leaving = announce(leftNames, " has left the group chat.", " have left the group chat.");
+            if (announcement == null) {
+                announcement = leaving;
+            } else if (leaving != null) {
+                announcement = announcement + " " + leaving;
+            }
+
+            long version = server.nextPresenceVersion();
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            Protocol.writeVarint(payload, version);
+            Protocol.writeVarint(payload, size);
+            payload.writeBytes(changes.toByteArray());
+            Message presence = Message.control(Protocol.PRESENCE, "PRESENCE:" + version + ":" + delta, payload.toByteArray());
+            Message text = Message.notice(announcement);
+            boolean direct = server.useDirectBuffer(server.getSessions().size());
+            server.getSessions().forEach(handler -> {
+                if (handler.isPresent()) {
+                    handler.deliver(presence, direct);
+                    //Like a normal join, clients don't get told that they themselves joined
+                    if (!joiners.contains(handler)) {
+                        handler.deliver(text, direct);
+                    }
+                }
+            });
+
+            batches.increment();
+            batchedChanges.add(size);
+            if (size > largestBatch) {
+                largestBatch = size;
+            }
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Builds "alice has joined the chat." or "alice, bob have joined the chat.".
+     * @return The line, or null if there are no names.
+     */
+    private static String announce(List<String> names, String single, String plural) {
+        if (names.isEmpty()) {
+            return null;
+        }
+        return String.join(", ", names) + (names.size() == 1 ? single : plural);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return The number of batches sent since the last call, the count is reset.
+     */
+    public long takeBatches() {
+        return batches.sumThenReset();
+    }
+
+    /**
+     * @return The number of joins and leaves sent since the last call, the count is reset.
+     */
+    public long takeBatchedChanges() {
+        return batchedChanges.sumThenReset();
+    }
+
+    /**
+     * @return The most joins and leaves ever sent in one batch.
+     */
+    public int getLargestBatch() {
+        return largestBatch;
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The binary wire protocol. A client that wants it sends MAGIC and the protocol
+ * version as its very first two bytes (0xFF never appears in UTF-8 text, so a
+ * legacy client's username can't be mistaken for it) and the server answers
+ * with the same two bytes. After that every message in both directions is a
+ * frame:
+ *
+ *   varint length | type | varint sender id | varint recipient id | payload
+ *
+ * where length covers everything after itself. Ids that don't apply are 0.
+ * Text payloads are UTF-8, names inside payloads are varint length + UTF-8.
+ */
+public final class Protocol {
+    public static final int MAGIC = 0xFF;
+    public static final int VERSION = 1;
+    //Frames bigger than this are treated as a broken client
+    public static final int MAX_FRAME = 1 << 16;
+
+    //Client to server
+    public static final byte LOGIN = 1;
+    public static final byte CHAT = 2;
+    //Both directions, to the server the recipient id is set, to a client the payload starts with the sender's name
+    public static final byte WHISPER = 3;
+    public static final byte COMMAND = 4;
+    //Both directions, the recipient id is the room id, to a client the payload starts with the room and sender names
+    public static final byte ROOM = 5;
+
+    //Server to client
+    public static final byte LOGIN_RESULT = 16;
+    public static final byte GROUP = 17;
+    public static final byte NOTICE = 18;
+    public static final byte SNAPSHOT = 19;
+    public static final byte PRESENCE = 20;
+    public static final byte TERMINATE = 21;
+    //The recipient id is the room id, the payload the room name
+    public static final byte ROOM_JOINED = 22;
+    public static final byte ROOM_LEFT = 23;
+    //Chat history: a varint count, then for every message its type, varint timestamp, sender,
+    // target and text. The recipient id is 0 for the catch-up after login, 1 for a /history page
+    // and 2 for whispers that were kept while the client was offline
+    public static final byte HISTORY = 24;
+
+    private Protocol() {
+    }
+
+    /**
+     * Builds a complete frame.
+     * @param type The frame type.
+     * @param sender The sender id, or 0.
+     * @param recipient The recipient id, or 0.
+     * @param prefix Bytes that go in front of the payload (for example a name), or null.
+     * @param payload The payload bytes.
+     * @param offset Where the payload starts.
+     * @param length How long the payload is.
+     * @return The encoded frame.
+     */
+    public static byte[] encode(byte type, int sender, int recipient, byte[] prefix,
+            byte[] payload, int offset, int length) {
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        int body = 1 + varintSize(sender) + varintSize(recipient) + prefixLength + length;
+        byte[] frame = new byte[varintSize(body) + body];
+        int position = writeVarint(frame, 0, body);
+        frame[position++] = type;
+        position = writeVarint(frame, position, sender);
+        position = writeVarint(frame, position, recipient);
+        if (prefix != null) {
+            System.arraycopy(prefix, 0, frame, position, prefixLength);
+            position += prefixLength;
+        }
+        System.arraycopy(payload, offset, frame, position, length);
+        return frame;
+    }
+
+    /**
+     * Encodes a name as varint length followed by the UTF-8 bytes.
+     */
+    public static byte[] encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[varintSize(bytes.length) + bytes.length];
+        int position = writeVarint(encoded, 0, bytes.length);
+        System.arraycopy(bytes, 0, encoded, position, bytes.length);
+        return encoded;
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes an unsigned varint (7 bits per byte, high bit set on all but the last).
+     * @return The position after the varint.
+     */
+    public static int writeVarint(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Writes an unsigned varint to a stream, used for payloads built from
+     * several parts such as a presence snapshot.
+     */
+    public static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned varint from a stream.
+     */
+    public static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Writes an unsigned varint into a buffer, used for records on disk.
+     */
+    public static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint from a buffer.
+     * @throws IllegalStateException If it is longer than an int can hold.
+     */
+    public static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Varint too long");
+    }
+
+    /**
+     * Reads a name (or any text) written by encodeName from a buffer.
+     */
+    public static String readName(ByteBuffer in) {
+        byte[] bytes = new byte[readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * One parsed frame. The payload is not copied, it points into the buffer
+     * the frame was read into, so it is only valid until the next frame is read.
+     * A connection keeps one of these and reuses it for every frame.
+     */
+    public static final class Inbound {
+        public byte type;
+        public int sender;
+        public int recipient;
+        public byte[] buffer;
+        public int payloadOffset;
+        public int payloadLength;
+        //Length of the whole frame body, everything after the length varint
+        public int length;
+        //Buffer for frames read from a stream, reused for every frame
+        private byte[] readBuffer = new byte[256];
+        //Cursor for the read methods below
+        private int position;
+        private int end;
+
+        /**
+         * Parses the body of a frame (everything after the length).
+         * @throws IOException if the frame is malformed.
+         */
+        public void parse(byte[] buffer, int offset, int length) throws IOException {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+            this.length = length;
+            if (length < 1) {
+                throw new IOException("Empty frame");
+            }
+            type = buffer[position++];
+            sender = readVarint();
+            recipient = readVarint();
+            payloadOffset = position;
+            payloadLength = end - position;
+        }
+
+        /**
+         * Reads the next frame from a blocking stream and parses it.
+         * @throws EOFException if the stream ends, IOException if the frame is malformed.
+         */
+        public void read(InputStream in) throws IOException {
+            int length = Protocol.readVarint(in);
+            if (length > MAX_FRAME) {
+                throw new IOException("Frame too big: " + length);
+            }
+            if (readBuffer.length < length) {
+                readBuffer = new byte[length];
+            }
+            if (in.readNBytes(readBuffer, 0, length) < length) {
+                throw new EOFException();
+            }
+            parse(readBuffer, 0, length);
+        }
+
+        /**
+         * Reads a varint from the payload, moving the cursor past it.
+         */
+        public int readVarint() throws IOException {
+            long value = readVarlong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Varint too long");
+            }
+            return (int) value;
+        }
+
+        /**
+         * Reads a varint that may not fit in an int, such as a presence version.
+         */
+        public long readVarlong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= end) {
+                    throw new IOException("Truncated frame");
+                }
+                int b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        /**
+         * Reads a length-prefixed name from the payload, moving the cursor past it.
+         */
+        public String readName() throws IOException {
+            int length = readVarint();
+            if (length > end - position) {
+                throw new IOException("Truncated frame");
+            }
+            String name = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return name;
+        }
+
+        public byte readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("Truncated frame");
+            }
+            return buffer[position++];
+        }
+
+        /**
+         * Moves the cursor back to the start of the payload.
+         */
+        public void rewind() {
+            position = payloadOffset;
+        }
+
+        /**
+         * @return Whatever is left of the payload from the cursor on, as text.
+         */
+        public String remainingText() {
+            return new String(buffer, position, end - position, StandardCharsets.UTF_8);
+        }
+
+        public int remainingOffset() {
+            return position;
+        }
+
+        public int remainingLength() {
+            return end - position;
+        }
+
+        public String payloadText() {
+            return new String(buffer, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * This class represents a chat room (channel) that clients join with
+ * "/join #name". Its members are kept in their own slot array, so a message
+ * to the room only touches the room's members and joining or leaving is
+ * O(1) whether the room has 2 members or 10000.
+ * A room is created by its first join and closed by its last leave.
+ */
+public class Room {
+    private final int id;
+    private final String name;
+    //The name as it appears in binary frames, encoded once
+    private final byte[] nameBytes;
+    private final SlotArray<ClientHandler> members = new SlotArray<>(4, 0);
+    //Guards all changes to the members
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean closed;
+
+    /*
+     * One client's membership of a room, kept by the client so that it can
+     * find the room and its slot in it without any shared lookups.
+     */
+    public static final class Membership {
+        private final Room room;
+        private final int slot;
+
+        Membership(Room room, int slot) {
+            this.room = room;
+            this.slot = slot;
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+    }
+
+    public Room(int id, String name) {
+        this.id = id;
+        this.name = name;
+        this.nameBytes = Protocol.encodeName(name);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    /**
+     * Adds a client to the room.
+     * @param clientHandler The client joining.
+     * @return The membership, or null if the room was closed in the meantime
+     *         and the caller has to get a new one.
+     */
+    public Membership add(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            return new Membership(this, members.add(clientHandler));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client from the room. If it was the last member the room is
+     * closed, and nobody can join it any more.
+     * @param clientHandler The client leaving.
+     * @param membership The membership add() returned.
+     * @return true if the room is now closed and should be forgotten.
+     */
+    public boolean remove(ClientHandler clientHandler, Membership membership) {
+        lock.lock();
+        try {
+            members.remove(membership.slot, clientHandler);
+            if (members.size() == 0) {
+                closed = true;
+            }
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs an action for every member of the room.
+     */
+    public void forEach(Consumer<ClientHandler> action) {
+        members.forEach(action);
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
@@ -1,11 +1,29 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap; 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * This class represents a server that accepts incoming clients and
@@ -13,98 +31,985 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Server {
     
+    //How long a new client has to pick a valid username, in milliseconds
+    public static final int HANDSHAKE_TIMEOUT = 30000;
+    //Size of the blocking writer's buffer, writes are coalesced in here until the next flush
+    private static final int WRITE_BUFFER_SIZE = 16384;
+    //Fan-outs to at least this many clients are encoded into a direct buffer in NIO mode
+    private static final int DIRECT_FANOUT = 16;
+    //Longest allowed room name
+    private static final int MAX_ROOM_NAME = 32;
+    //How often the accept rate is printed, in seconds
+    private static final int RATE_INTERVAL = 10;
+    //Port clients connect to, set it to run more than one node on a machine
+    private static final int PORT = Integer.getInteger("chat.port", 1234);
+
     private ServerSocket serverSocket;
     private ConcurrentHashMap<String, ClientHandler> clientList = new ConcurrentHashMap<>();
+    //The same clients by session id, used for routing so names are only looked up at the edges
+    private final SessionRegistry sessions = new SessionRegistry();
+    //Counters and histograms served over JMX and the metrics endpoint
+    private final Metrics metrics = new Metrics(sessions);
+    //Chat rooms by name and by id, a room exists while it has members
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Room> roomsById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRoomId = new AtomicInteger();
+    //Held while a join or leave is being announced, a ReentrantLock so virtual threads don't pin their carrier
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    //Bumped on every join and leave, guarded by the membership lock
+    private long presenceVersion;
+    //Merges joins and leaves that happen close together, null when every change is sent straight away
+    private PresenceBatcher presenceBatcher;
+    //Runs the per-client handshake and handler, a new platform thread each by default
+    private boolean nio;
+    private Executor clientExecutor = runnable -> new Thread(runnable).start();
+    //Size of each client's outbound queue and what happens when it fills up
+    private int outboundCapacity = Integer.getInteger("chat.outboundCapacity", 1024);
+    private OutboundQueue.OverflowPolicy overflowPolicy =
+            OutboundQueue.OverflowPolicy.valueOf(System.getProperty("chat.overflowPolicy", "DROP_OLDEST"));
+    //How long a writer may hold back a flush while more messages are queued, in microseconds
+    private long flushBudgetMicros = Long.getLong("chat.flushBudgetMicros", 500);
+    //Every chat message is written here, null when the journal is turned off
+    private MessageJournal journal;
+    //Recent messages for new clients and older ones out of the journal
+    private ChatHistory history;
+    //Whispers to users who are offline, null when it is turned off
+    private OfflineMailbox mailbox;
+    //Other nodes of the cluster, null when this server runs on its own
+    private Cluster cluster;
+    //Users logged in on other nodes and the node each one is on, guarded by the membership lock for changes
+    private final ConcurrentHashMap<String, Integer> remoteUsers = new ConcurrentHashMap<>();
+    private final LongAdder acceptCount = new LongAdder();
+    private final LongAdder loginCount = new LongAdder();
 
     public Server(ServerSocket serverSocket) {
         this.serverSocket = serverSocket;
+        long presenceWindow = Long.getLong("chat.presenceWindowMillis", 50);
+        if (presenceWindow > 0) {
+            this.presenceBatcher = new PresenceBatcher(this, presenceWindow);
+        }
+        this.journal = openJournal();
+        this.history = new ChatHistory(journal, Integer.getInteger("chat.historySize", 100),
+                Integer.getInteger("chat.whisperHistorySize", 20), Integer.getInteger("chat.historyPage", 50));
+        this.mailbox = openMailbox();
+        this.cluster = Cluster.fromProperties(this);
+    }
+
+    /**
+     * Opens the message journal in the directory set by chat.journalDir, or
+     * returns null if it is set to nothing or can't be opened. The chat
+     * still works without a journal, it just isn't written down.
+     */
+    private static MessageJournal openJournal() {
+        String directory = System.getProperty("chat.journalDir", "journal");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        try {
+            return new MessageJournal(new File(directory),
+                    Integer.getInteger("chat.journalSegmentMB", 64) << 20,
+                    MessageJournal.FsyncPolicy.valueOf(System.getProperty("chat.journalFsync", "INTERVAL")),
+                    Long.getLong("chat.journalFsyncMillis", 1000));
+        } catch (IOException e) {
+            System.out.println("Could not open the message journal, messages will not be kept.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Opens the offline mailbox in the directory set by chat.mailboxDir, or
+     * returns null if it is set to nothing or can't be opened, in which case
+     * whispers to offline users are refused like before.
+     */
+    private static OfflineMailbox openMailbox() {
+        String directory = System.getProperty("chat.mailboxDir", "mailbox");
+        if (directory.isEmpty()) {
+            return null;
+        }
+        try {
+            return new OfflineMailbox(new File(directory),
+                    Integer.getInteger("chat.mailboxMaxMessages", 100),
+                    Long.getLong("chat.mailboxMaxMB", 64) << 20,
+                    TimeUnit.HOURS.toMillis(Long.getLong("chat.mailboxTtlHours", 168)));
+        } catch (IOException e) {
+            System.out.println("Could not open the offline mailbox, whispers to offline users will be refused.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Keeps a whisper for a user who isn't online and tells the sender what
+     * happened to it.
+     * @param sender The client that sent the whisper.
+     * @param recipient The username it is for.
+     * @param text The whisper.
+     */
+    public void storeOffline(ClientHandler sender, String recipient, String text) {
+        if (mailbox == null) {
+            sender.communicate("Client not found");
+            return;
+        }
+        try {
+            if (mailbox.store(recipient, sender.getUsername(), text)) {
+                sender.communicate(recipient + " is offline, they will get your whisper when they log in.");
+            } else {
+                sender.communicate("Offline whispers are full, " + recipient + " will not get your whisper.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            sender.communicate("Your whisper to " + recipient + " could not be kept.");
+        }
+    }
+
+    /**
+     * Sends a client that has just logged in the whispers it got while it
+     * was offline, as one batch.
+     * @param clientHandler The client, it must not be logged in yet.
+     */
+    private void deliverMailbox(ClientHandler clientHandler) {
+        if (mailbox == null) {
+            return;
+        }
+        try {
+            List<MessageJournal.Record> mail = mailbox.drain(clientHandler.getUsername());
+            if (!mail.isEmpty()) {
+                ChatHistory.send(clientHandler, mail, ChatHistory.MAILBOX,
+                        "You got " + mail.size() + " whisper(s) while you were away.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a chat message to the recent history and writes it to the
+     * journal. Only queues it, the journal's own thread does the writing, so
+     * this is safe to call on the fan-out path.
+     * @param message A group, room or whisper message.
+     * @param recipient The recipient of a whisper, otherwise null.
+     */
+    public void record(Message message, ClientHandler recipient) {
+        long id = 0;
+        if (journal != null) {
+            byte[] target = null;
+            if (message.getRoom() != null) {
+                target = message.getRoom().getNameBytes();
+            } else if (recipient != null) {
+                target = recipient.getNameBytes();
+            }
+            id = journal.append(message.getType(), message.getSender().getNameBytes(), target, message.textBytes());
+        }
+        history.add(id, message, recipient);
+    }
+
+    public MessageJournal getJournal() {
+        return journal;
+    }
+
+    public ChatHistory getHistory() {
+        return history;
     }
 
     /**
      * Starts the server. This method is the main entry point of the
      * program. It creates a ServerSocket and a Server, and starts the
      * server's main loop.
+     * Passing "nio" as the first argument runs the non-blocking event loop
+     * server instead of a thread per client, an optional second argument
+     * sets the number of event loops (defaults to one per core). Passing
+     * "virtual" runs each client on a virtual thread.
+     * The outbound queue of each client can be tuned with the system properties
+     * chat.outboundCapacity (messages) and chat.overflowPolicy (DROP_OLDEST,
+     * DROP_NEWEST or DISCONNECT). chat.flushBudgetMicros sets how long a
+     * client's writer may coalesce queued messages before it has to flush
+     * (0 flushes every message). chat.presenceWindowMillis sets how long joins
+     * and leaves are collected before they are sent as one batch (0 sends
+     * every change straight away). Chat messages are written to a journal in
+     * chat.journalDir ("journal" by default, empty turns it off) made of
+     * chat.journalSegmentMB sized segments, which are forced to disk
+     * according to chat.journalFsync (ALWAYS, INTERVAL or NEVER) and, for
+     * INTERVAL, chat.journalFsyncMillis. A new client is shown the last
+     * chat.historySize group messages and its last chat.whisperHistorySize
+     * whispers, "/history" pages chat.historyPage older ones out of the journal.
+     * Whispers to offline users are kept in chat.mailboxDir ("mailbox" by
+     * default, empty turns it off), at most chat.mailboxMaxMessages per user,
+     * chat.mailboxMaxMB for everyone and for chat.mailboxTtlHours.
+     * Clients connect on port chat.port (1234 by default). Setting
+     * chat.cluster to the cluster addresses (host:port,host:port,...) of
+     * several servers and chat.nodeId to this server's place in that list
+     * runs it as one node of a cluster. Metrics are registered with JMX and
+     * served as text on 127.0.0.1 port chat.metricsPort (9100 by default, 0
+     * turns that off). Typing "record <seconds>" or "dump" into the console
+     * writes a flight recording of the chat events to chat.jfrDir, see
+     * ChatRecording.
      * @param args The command line arguments.
      */
     public static void main(String[] args) {
         ServerSocket serverSocket;
         try {
-            serverSocket = new ServerSocket(1234);
-            Server server = new Server(serverSocket);
-            server.start();
+            if (args.length > 0 && args[0].equals("nio")) {
+                int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(PORT));
+                Server server = new Server(channel.socket());
+                server.startMetrics();
+                server.startRecording();
+                server.startCluster();
+                server.startNio(threads);
+            } else if (args.length > 0 && args[0].equals("virtual")) {
+                serverSocket = new ServerSocket(PORT);
+                Server server = new Server(serverSocket);
+                server.startMetrics();
+                server.startRecording();
+                server.startCluster();
+                server.startVirtual();
+            } else {
+                serverSocket = new ServerSocket(PORT);
+                Server server = new Server(serverSocket);
+                server.startMetrics();
+                server.startRecording();
+                server.startCluster();
+                server.start();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Connects to the other nodes if this server is part of a cluster.
+     */
+    public void startCluster() throws IOException {
+        if (cluster != null) {
+            cluster.start();
+        }
+    }
+
     /**
      * Start the server. This method is the main loop of the server.
-     * It will accept incoming client sockets, assign a new ClientHandler
-     * to each socket, and start a new thread for each client.
-     * It will also notify all clients that a new client has joined.
+     * It will accept incoming client sockets and start a new thread for
+     * each client. The username handshake runs on that thread, so a client
+     * that is slow to pick a name never holds up accept() for anyone else.
      */
     public void start()
     {
         System.out.println("Server started.");
+        acceptClients();
+    }
+
+    private void acceptClients() {
+        startAcceptRateReporter();
         while (!serverSocket.isClosed()) {
             try {
                 Socket socket = serverSocket.accept();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-                
-                //Deal with the username of the client
-                String username;
-                while (true) {
-                    username = reader.readLine();
-
-                    if (username == null) {
-                        continue;
-                    } else if (username.isEmpty()) {
-                        writer.write("Username cannot be empty.");
-                        writer.newLine();
-                        writer.flush();
-                        continue;
-                    } else if (clientList.containsKey(username)) {
-                        writer.write("Username already taken.");
-                        writer.newLine();
-                        writer.flush();
-                        continue;
-                    } else {
-                        writer.write("Username accepted.");
-                        writer.newLine();
-                        writer.flush();
-                        break;
+                countAccept();
+
+                //create a thread for this client to provide concurrency
+                clientExecutor.execute(() -> handshake(socket));
+            
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deals with the username of a newly accepted client and then runs its
+     * ClientHandler on the current thread. The client gets HANDSHAKE_TIMEOUT
+     * milliseconds to pick a valid name, after that (or if it disconnects
+     * before logging in) the socket is simply closed.
+     * If the first byte is Protocol.MAGIC the client speaks the binary
+     * protocol, otherwise it is a legacy client sending its name as a line.
+     * @param socket The socket of the new client.
+     */
+    private void handshake(Socket socket) {
+        long start = System.nanoTime();
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            //The writer decides when to flush, so don't let Nagle hold back the flushed batch as well
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+
+            in.mark(1);
+            int first = in.read();
+            ClientHandler clientHandler;
+            if (first == Protocol.MAGIC) {
+                clientHandler = binaryLogin(socket, in, out);
+            } else {
+                in.reset();
+                clientHandler = textLogin(socket, new BufferedReader(new InputStreamReader(in)), out);
+            }
+            if (clientHandler == null) {
+                socket.close();
+                return;
+            }
+            metrics.handshake(start);
+            socket.setSoTimeout(0);
+            clientExecutor.execute(clientHandler::writeMessages);
+            join(clientHandler);
+            clientHandler.run();
+        } catch (SocketTimeoutException e) {
+            System.out.println("Client timed out before logging in.");
+            closeQuietly(socket);
+        } catch (EOFException e) {
+            //Disconnected halfway through a binary login
+            closeQuietly(socket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly(socket);
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Reads username lines from a legacy client until one is accepted.
+     * @return The logged in handler, or null if the client disconnected.
+     */
+    private ClientHandler textLogin(Socket socket, BufferedReader reader, OutputStream out) throws IOException {
+        while (true) {
+            String username = reader.readLine();
+            if (username == null) {
+                return null;
+            }
+            //The handler keeps the same reader so nothing sent straight after the name is lost
+            ClientHandler clientHandler = new ClientHandler(socket, reader, out, this, username);
+            if (login(clientHandler)) {
+                return clientHandler;
+            }
+        }
+    }
+
+    /**
+     * Finishes the binary negotiation (the magic byte has already been read)
+     * and reads LOGIN frames until one is accepted.
+     * @return The logged in handler, or null if the client disconnected or
+     *         asked for a protocol version this server doesn't speak.
+     */
+    private ClientHandler binaryLogin(Socket socket, InputStream in, OutputStream out) throws IOException {
+        int version = in.read();
+        //Either way the client learns which version the server speaks
+        out.write(Protocol.MAGIC);
+        out.write(Protocol.VERSION);
+        out.flush();
+        if (version != Protocol.VERSION) {
+            return null;
+        }
+        Protocol.Inbound frame = new Protocol.Inbound();
+        while (true) {
+            frame.read(in);
+            if (frame.type != Protocol.LOGIN) {
+                return null;
+            }
+            ClientHandler clientHandler = new ClientHandler(socket, in, out, this, frame.payloadText());
+            if (login(clientHandler)) {
+                return clientHandler;
+            }
+        }
+    }
+
+    /**
+     * Start the server with a virtual thread per client instead of a platform
+     * thread. The handlers are exactly the same blocking code, but idle clients
+     * only cost a small heap object instead of a thread stack.
+     */
+    public void startVirtual() {
+        clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        System.out.println("Server started (virtual threads).");
+        acceptClients();
+    }
+
+    /**
+     * Start the non-blocking server. The server socket must have been opened
+     * through a ServerSocketChannel. Clients are spread over the given number
+     * of event loop threads instead of getting a thread each.
+     * @param threads The number of event loops.
+     */
+    public void startNio(int threads) throws IOException {
+        System.out.println("Server started (nio, " + threads + " event loops).");
+        nio = true;
+        startAcceptRateReporter();
+        NioServer nioServer = new NioServer(this, serverSocket.getChannel(), threads);
+        nioServer.start();
+    }
+
+    /**
+     * Tries to log a client in with the username of its handler and tells the
+     * client whether it worked. The name is reserved with putIfAbsent so two
+     * clients asking for the same name at the same time can't both get it.
+     * @param clientHandler The handler of the client that is logging in.
+     * @return true if the username was accepted.
+     */
+    public boolean login(ClientHandler clientHandler) {
+        String username = clientHandler.getUsername();
+        if (username.isEmpty()) {
+            clientHandler.respond("Username cannot be empty.");
+            return false;
+        } else if (clientList.putIfAbsent(username, clientHandler) != null) {
+            clientHandler.respond("Username already taken.");
+            return false;
+        }
+        if (cluster != null) {
+            //The name also has to be free on every other node
+            try {
+                if (!cluster.claim(username)) {
+                    clientList.remove(username, clientHandler);
+                    clientHandler.respond("Username already taken.");
+                    return false;
+                }
+            } catch (IOException e) {
+                System.out.println("Cluster: " + e.getMessage());
+                clientList.remove(username, clientHandler);
+                clientHandler.respond("Username could not be checked, try again.");
+                return false;
+            }
+        }
+        sessions.register(clientHandler);
+        clientHandler.respond("Username accepted.");
+        //Recent history comes from memory, and before any live message
+        history.sendCatchUp(clientHandler);
+        deliverMailbox(clientHandler);
+        //Only now can other clients send to it, otherwise a message could beat the response
+        clientHandler.setLoggedIn();
+        loginCount.increment();
+        return true;
+    }
+
+    /**
+     * Lets everyone know that a logged in client has joined. The new client
+     * gets the full list of online users, everyone else only gets a JOIN delta.
+     * @param clientHandler The handler of the client that joined.
+     */
+    public void join(ClientHandler clientHandler) {
+        System.out.println("Client has joined the chat.");
+
+        //Lock the membership to avoid any race conditions and data corruption
+        membershipLock.lock();
+        try {
+            if (cluster != null) {
+                cluster.publishPresence(clientHandler.getUsername(), true);
+            }
+            if (presenceBatcher != null) {
+                //The new client gets the list as it is now, its own join arrives with the next batch
+                sendOnlineUsers(clientHandler);
+                presenceBatcher.add(clientHandler, true);
+                return;
+            }
+            clientHandler.groupChat(clientHandler.getUsername() + " has joined the chat.", true);
+            clientHandler.setPresent(true);
+            presenceVersion++;
+            sendOnlineUsers(clientHandler);
+            broadcastPresence("JOIN", clientHandler);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Lets everyone know that a client has left with a LEAVE delta. Must be
+     * called with the membership lock held, after the client was removed.
+     * @param clientHandler The handler of the client that left.
+     */
+    public void leave(ClientHandler clientHandler) {
+        if (cluster != null) {
+            cluster.publishPresence(clientHandler.getUsername(), false);
+            cluster.release(clientHandler.getUsername());
+        }
+        if (presenceBatcher != null) {
+            presenceBatcher.add(clientHandler, false);
+            return;
+        }
+        clientHandler.setPresent(false);
+        presenceVersion++;
+        broadcastPresence("LEAVE", clientHandler);
+        clientHandler.groupChat(clientHandler.getUsername() + " has left the group chat.", true);
+    }
+
+    /**
+     * Adds a client to a room, creating the room if nobody is in it yet.
+     * The client is told the room's id (binary) or its size (text), and the
+     * other members are told who joined.
+     * @param clientHandler The client joining.
+     * @param name The room name without the '#'.
+     */
+    public void joinRoom(ClientHandler clientHandler, String name) {
+        if (!isValidRoomName(name)) {
+            clientHandler.communicate("Room names are # followed by up to " + MAX_ROOM_NAME + " letters, digits, - or _.");
+            return;
+        } else if (clientHandler.getRooms().containsKey(name)) {
+            clientHandler.communicate("You are already in #" + name + ".");
+            return;
+        }
+        Room.Membership membership;
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, roomName -> {
+                Room created = new Room(nextRoomId.incrementAndGet(), roomName);
+                roomsById.put(created.getId(), created);
+                return created;
+            });
+            membership = room.add(clientHandler);
+            if (membership != null) {
+                break;
+            }
+            //The last member left while we were looking it up, get rid of it and make a new one
+            forgetRoom(room);
+        }
+        Room room = membership.getRoom();
+        clientHandler.getRooms().put(name, membership);
+        int size = room.size();
+        clientHandler.deliver(Message.control(Protocol.ROOM_JOINED, room.getId(),
+                "Joined #" + name + " (" + size + (size == 1 ? " member)." : " members)."), room.getNameBytes()));
+        clientHandler.roomChat(room, Message.notice(clientHandler.getUsername() + " joined #" + name + "."));
+    }
+
+    /**
+     * Takes a client out of a room it is in and tells the other members.
+     * @param clientHandler The client leaving.
+     * @param name The room name without the '#'.
+     */
+    public void leaveRoom(ClientHandler clientHandler, String name) {
+        Room.Membership membership = clientHandler.getRooms().remove(name);
+        if (membership == null) {
+            clientHandler.communicate("You are not in #" + name + ".");
+            return;
+        }
+        Room room = membership.getRoom();
+        removeFromRoom(clientHandler, membership);
+        clientHandler.deliver(Message.control(Protocol.ROOM_LEFT, room.getId(), "Left #" + name + ".", room.getNameBytes()));
+    }
+
+    /**
+     * Takes a client that is leaving the chat out of all its rooms.
+     * @param clientHandler The client leaving.
+     */
+    public void leaveAllRooms(ClientHandler clientHandler) {
+        for (String name : clientHandler.getRooms().keySet()) {
+            Room.Membership membership = clientHandler.getRooms().remove(name);
+            if (membership != null) {
+                removeFromRoom(clientHandler, membership);
+            }
+        }
+    }
+
+    private void removeFromRoom(ClientHandler clientHandler, Room.Membership membership) {
+        Room room = membership.getRoom();
+        if (room.remove(clientHandler, membership)) {
+            forgetRoom(room);
+        } else {
+            clientHandler.roomChat(room, Message.notice(clientHandler.getUsername() + " left #" + room.getName() + "."));
+        }
+    }
+
+    private void forgetRoom(Room room) {
+        rooms.remove(room.getName(), room);
+        roomsById.remove(room.getId(), room);
+    }
+
+    /**
+     * @return The room with that id, or null if it has been closed.
+     */
+    public Room getRoom(int id) {
+        return roomsById.get(id);
+    }
+
+    private static boolean isValidRoomName(String name) {
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bumps the presence version for a batch of changes. Must be called with
+     * the membership lock held.
+     * @return The new version.
+     */
+    public long nextPresenceVersion() {
+        return ++presenceVersion;
+    }
+
+    public ConcurrentHashMap<String, ClientHandler> getClientList() {
+        return clientList;
+    }
+
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    public ReentrantLock getMembershipLock() {
+        return membershipLock;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getFlushBudgetNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(flushBudgetMicros);
+    }
+
+    /**
+     * Sends the full list of online users to one client, together with the
+     * presence version it is valid for, in the format
+     * "ONLINE:version:user1,user2,...". This is sent on login and whenever a
+     * client asks for a resync because it missed a delta. A binary client gets
+     * a SNAPSHOT frame with the version, the number of users and then the
+     * session id and name of each one.
+     * @param clientHandler The client to send the list to.
+     */
+    public void sendOnlineUsers(ClientHandler clientHandler) {
+        membershipLock.lock();
+        try {
+            if (clientHandler.isBinary()) {
+                List<ClientHandler> online = new ArrayList<>();
+                sessions.forEach(handler -> {
+                    if (handler.isPresent()) {
+                        online.add(handler);
                     }
+                });
+                ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+                Protocol.writeVarint(snapshot, presenceVersion);
+                Protocol.writeVarint(snapshot, online.size() + remoteUsers.size());
+                for (ClientHandler handler : online) {
+                    Protocol.writeVarint(snapshot, handler.getId());
+                    snapshot.writeBytes(handler.getNameBytes());
                 }
-                ClientHandler clientHandler = new ClientHandler(socket, clientList, username);
-                clientList.put(username, clientHandler);
-                System.out.println("Client has joined the chat.");
-                
-                //Synchronize the client list to avoid any race conditions and data corruption
-                synchronized (clientList) {
-                    clientHandler.groupChat(username + " has joined the chat.", true);
-                    broadcastOnlineUsers();
+                //Users on other nodes have no session id here, they are whispered by name
+                for (String name : remoteUsers.keySet()) {
+                    Protocol.writeVarint(snapshot, 0);
+                    snapshot.writeBytes(Protocol.encodeName(name));
                 }
+                clientHandler.deliver(Message.control(Protocol.SNAPSHOT, null, snapshot.toByteArray()));
+                return;
+            }
+            //I tried sending the entire user hashmap but ran into trouble so Im sending it as a string
+            StringBuilder online = new StringBuilder("ONLINE:").append(presenceVersion).append(':');
+            int start = online.length();
+            sessions.forEach(handler -> {
+                if (handler.isPresent()) {
+                    if (online.length() > start) {
+                        online.append(',');
+                    }
+                    online.append(handler.getUsername());
+                }
+            });
+            for (String name : remoteUsers.keySet()) {
+                if (online.length() > start) {
+                    online.append(',');
+                }
+                online.append(name);
+            }
+            clientHandler.communicate(online.toString());
+        } finally {
+            membershipLock.unlock();
+        }
+    }
 
-                //create a thread for this client to provide concurrency
-                Thread thread = new Thread(clientHandler);
-                thread.start();
-            
+    /**
+     * Sends a presence delta ("JOIN:version:user" or "LEAVE:version:user") to
+     * every other online client. Every change bumps the version by one, so a
+     * client that sees a gap knows it missed something and can ask for a resync.
+     * Deltas are queued while holding the membership lock, so every client
+     * gets them in version order. Binary clients get the same change as a
+     * PRESENCE frame with a single entry.
+     * @param kind JOIN or LEAVE.
+     * @param subject The client that joined or left.
+     */
+    private void broadcastPresence(String kind, ClientHandler subject) {
+        broadcastPresence(kind, subject, subject.getId(), subject.getUsername(), subject.getNameBytes());
+    }
+
+    /**
+     * Sends a presence delta about any user, including one on another node.
+     * @param subject The client that joined or left, null for a user on another node.
+     */
+    private void broadcastPresence(String kind, ClientHandler subject, int id, String name, byte[] nameBytes) {
+        ByteArrayOutputStream change = new ByteArrayOutputStream();
+        Protocol.writeVarint(change, presenceVersion);
+        Protocol.writeVarint(change, 1);
+        writePresenceChange(change, id, nameBytes, kind.equals("JOIN"));
+        Message delta = Message.control(Protocol.PRESENCE,
+                kind + ":" + presenceVersion + ":" + name, change.toByteArray());
+        boolean direct = useDirectBuffer(sessions.size());
+        sessions.forEach(handler -> {
+            if (handler != subject && handler.isPresent()) {
+                handler.deliver(delta, direct);
+            }
+        });
+    }
+
+    /**
+     * Writes one entry of a binary PRESENCE frame: '+' or '-', the session id and the name.
+     */
+    public static void writePresenceChange(ByteArrayOutputStream out, ClientHandler clientHandler, boolean join) {
+        writePresenceChange(out, clientHandler.getId(), clientHandler.getNameBytes(), join);
+    }
+
+    private static void writePresenceChange(ByteArrayOutputStream out, int id, byte[] nameBytes, boolean join) {
+        out.write(join ? '+' : '-');
+        Protocol.writeVarint(out, id);
+        out.writeBytes(nameBytes);
+    }
+
+    /**
+     * Applies a join or leave of a user on another node and tells the
+     * clients of this node, with its own presence version like a local one.
+     * A join that is already known (a node sends all its users again when it
+     * reconnects) and a leave of a user that isn't known are ignored.
+     * @param name The username.
+     * @param node The node the user is on.
+     * @param join true for a join, false for a leave.
+     */
+    public void remotePresence(String name, int node, boolean join) {
+        membershipLock.lock();
+        try {
+            if (join ? remoteUsers.put(name, node) != null : !remoteUsers.remove(name, node)) {
+                return;
+            }
+            presenceVersion++;
+            broadcastPresence(join ? "JOIN" : "LEAVE", null, 0, name, Protocol.encodeName(name));
+            Message notice = Message.notice(name + (join ? " has joined the chat." : " has left the group chat."));
+            sessions.forEach(handler -> {
+                if (handler.isPresent()) {
+                    handler.deliver(notice);
+                }
+            });
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Takes every user of a node that has gone away off the list.
+     */
+    public void remoteNodeDown(int node) {
+        for (String name : remoteUsers.keySet()) {
+            if (remoteUsers.get(name) == node) {
+                remotePresence(name, node, false);
+            }
+        }
+    }
+
+    /**
+     * Sends a group message from a client of this node to the other nodes.
+     */
+    public void forwardGroup(Message message) {
+        if (cluster != null) {
+            cluster.forwardGroup(message);
+        }
+    }
+
+    /**
+     * Sends a whisper to a user on another node.
+     * @return false if the recipient isn't logged in on any other node.
+     */
+    public boolean forwardWhisper(ClientHandler sender, String recipient, String text) {
+        Integer node = cluster == null ? null : remoteUsers.get(recipient);
+        if (node == null) {
+            return false;
+        }
+        cluster.forwardWhisper(node, sender, recipient, text);
+        return true;
+    }
+
+    /**
+     * Fans a group message that came from another node out to the clients
+     * of this node. The sender has no session id here, so it is sent as 0.
+     */
+    public void deliverRemoteGroup(String sender, String text) {
+        byte[] payload = concat(Protocol.encodeName(sender), text.getBytes(StandardCharsets.UTF_8));
+        Message message = Message.control(Protocol.GROUP, 0, sender + ": " + text, payload);
+        boolean direct = useDirectBuffer(sessions.size());
+        sessions.forEach(handler -> {
+            if (handler.isLoggedIn()) {
+                handler.deliver(message, direct);
+            }
+        });
+    }
+
+    /**
+     * Delivers a whisper that came from another node. If the recipient has
+     * left in the meantime it goes to their offline mailbox on this node.
+     */
+    public void deliverRemoteWhisper(String sender, String recipient, String text) {
+        ClientHandler client = clientList.get(recipient);
+        if (client != null && client.isLoggedIn()) {
+            byte[] payload = concat(Protocol.encodeName(sender), text.getBytes(StandardCharsets.UTF_8));
+            client.deliver(Message.control(Protocol.WHISPER, 0, "Whisper from " + sender + ": " + text, payload));
+        } else if (mailbox != null) {
+            try {
+                mailbox.store(recipient, sender, text);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * Decides whether a message that is about to be sent to many clients
+     * should be encoded into a direct buffer. The NIO server writes big
+     * fan-outs from a direct buffer so the bytes are not copied again for
+     * every recipient.
+     * @param recipients Roughly how many clients the message goes to.
+     */
+    public boolean useDirectBuffer(int recipients) {
+        return nio && recipients >= DIRECT_FANOUT;
+    }
+
+    /**
+     * Counts a newly accepted connection for the accept rate.
+     */
+    public void countAccept() {
+        acceptCount.increment();
+        metrics.connectionOpened();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics with JMX and serves them as text on the
+     * loopback interface on port chat.metricsPort (9100 by default, 0 turns
+     * the endpoint off).
+     */
+    public void startMetrics() {
+        metrics.registerMBean();
+        metrics.startEndpoint(Integer.getInteger("chat.metricsPort", 9100));
+    }
+
+    /**
+     * Starts the flight recorder console and, with chat.jfrMaxAgeMinutes
+     * greater than 0, a continuous recording of that many minutes that
+     * "dump" writes out.
+     */
+    public void startRecording() {
+        ChatRecording recording = new ChatRecording(new File(System.getProperty("chat.jfrDir", "recordings")),
+                Long.getLong("chat.jfrMaxAgeMinutes", 0));
+        recording.startConsole();
+    }
+
+    /**
+     * Starts a background thread that prints how many connections were
+     * accepted and how many clients logged in per second, every
+     * RATE_INTERVAL seconds. Nothing is printed while the server is idle.
+     */
+    public void startAcceptRateReporter() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "accept-rate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            long accepted = acceptCount.sumThenReset();
+            long logins = loginCount.sumThenReset();
+            if (accepted > 0 || logins > 0) {
+                System.out.printf("Accepted %.1f connections/s, %.1f logins/s.%n",
+                        accepted / (double) RATE_INTERVAL, logins / (double) RATE_INTERVAL);
+            }
+            metrics.printRates(RATE_INTERVAL);
+            printPresenceBatches();
+            printJournal();
+            printMailbox();
+            if (cluster != null) {
+                cluster.printStats();
+            }
+            printSlowClients();
+        }, RATE_INTERVAL, RATE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Prints how many presence batches were sent and how big they were,
+     * if any were sent since the last report.
+     */
+    private void printPresenceBatches() {
+        if (presenceBatcher == null) {
+            return;
+        }
+        long batches = presenceBatcher.takeBatches();
+        long changes = presenceBatcher.takeBatchedChanges();
+        if (batches > 0) {
+            System.out.printf("Presence: %d batches of %.1f joins/leaves on average (largest %d, window %d ms).%n",
+                    batches, changes / (double) batches, presenceBatcher.getLargestBatch(),
+                    presenceBatcher.getWindowMillis());
+        }
+    }
+
     /**
-     * Broadcasts the list of online users to all connected clients.
-     * It sends a the client list to all clients.
+     * Prints how many messages were journaled and in how many group commits,
+     * if any were written since the last report.
      */
-    public void broadcastOnlineUsers() {
-        //I tried sending the entire user hashmap but ran into trouble so Im sending it as a string
-        String online = "ONLINE:" + String.join(",", clientList.keySet());
-        for (ClientHandler handler : clientList.values()) {
-            handler.communicate(online);
+    private void printJournal() {
+        if (journal == null) {
+            return;
+        }
+        long appended = journal.takeAppended();
+        long commits = journal.takeCommits();
+        if (appended > 0) {
+            System.out.printf("Journal: %d messages in %d commits, last id %d (fsync %s).%n",
+                    appended, commits, journal.getLastId(), journal.getFsyncPolicy());
+        }
+    }
+
+    /**
+     * Drops expired offline whispers and prints how many were stored,
+     * delivered and dropped, if anything happened since the last report.
+     */
+    private void printMailbox() {
+        if (mailbox == null) {
+            return;
+        }
+        mailbox.evictExpired();
+        long stored = mailbox.takeStored();
+        long delivered = mailbox.takeDelivered();
+        long dropped = mailbox.takeDropped();
+        if (stored > 0 || delivered > 0 || dropped > 0) {
+            System.out.printf("Mailbox: %d whispers stored, %d delivered, %d dropped, %d waiting.%n",
+                    stored, delivered, dropped, mailbox.getWaiting());
+        }
+    }
+
+    /**
+     * Prints the outbound queue depth and drop count of every client that
+     * dropped messages since the last report or whose queue is over half full.
+     */
+    private void printSlowClients() {
+        sessions.forEach(handler -> {
+            int depth = handler.getQueueDepth();
+            long dropped = handler.getDroppedMessages();
+            if (dropped > handler.getReportedDrops() || depth > outboundCapacity / 2) {
+                System.out.println("Slow client " + handler.getUsername() + ": " + depth
+                        + " messages queued, " + dropped + " dropped.");
+                handler.setReportedDrops(dropped);
+            }
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Already closed, nothing else to do
         }
     }
 
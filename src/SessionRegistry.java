@@ -0,0 +1,97 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * This class keeps every logged in client in an array indexed by a compact
+ * session id, next to the username map in Server. Routing and fan-out go
+ * through the array, so sending a message costs no hashing or string
+ * comparisons, and names only matter at the edges (logging in and the
+ * "@username" syntax of the text protocol).
+ *
+ * The low SLOT_BITS of an id are the slot in the array and the bits above
+ * them a generation that changes every time the slot is reused. Slots of
+ * clients that left are handed out again, so the array stays as big as the
+ * most clients ever online at once, and an old id kept by a client never
+ * reaches whoever got the slot afterwards. A slot's first generation is 0,
+ * so ids stay small (and their varints short) until slots get reused. Slot
+ * 0 is never used, so no client gets id 0.
+ */
+public class SessionRegistry {
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    //Generations wrap around below this so ids stay positive
+    private static final int GENERATIONS = 1 << (31 - SLOT_BITS);
+
+    private final SlotArray<ClientHandler> slots = new SlotArray<>(64, 1);
+    //Guards all changes to the slots and the generations
+    private final ReentrantLock lock = new ReentrantLock();
+    private int[] generations = new int[64];
+
+    /**
+     * Gives a client a session id and puts it in the registry.
+     * @param clientHandler The client that has just logged in.
+     * @return The new session id, never 0.
+     */
+    public int register(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            int slot = slots.reserve();
+            if (slot > SLOT_MASK) {
+                throw new IllegalStateException("Too many sessions");
+            }
+            if (slot >= generations.length) {
+                generations = Arrays.copyOf(generations, generations.length * 2);
+            }
+            int id = generations[slot] << SLOT_BITS | slot;
+            //The id is set before the slot is filled, so whoever finds the client sees its id
+            clientHandler.setId(id);
+            slots.set(slot, clientHandler);
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a client out of the registry and frees its slot. Does nothing if
+     * the client isn't registered.
+     * @param clientHandler The client that has left.
+     */
+    public void unregister(ClientHandler clientHandler) {
+        int slot = clientHandler.getId() & SLOT_MASK;
+        lock.lock();
+        try {
+            if (clientHandler.getId() != 0 && slots.remove(slot, clientHandler)) {
+                //Whoever gets the slot next gets a different id
+                generations[slot] = (generations[slot] + 1) % GENERATIONS;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The client with that session id, or null if it has left.
+     */
+    public ClientHandler get(int id) {
+        ClientHandler clientHandler = slots.get(id & SLOT_MASK);
+        return clientHandler != null && clientHandler.getId() == id ? clientHandler : null;
+    }
+
+    /**
+     * Runs an action for every registered client by walking a dense copy of
+     * the slot array that is shared until the next login or leave.
+     * Clients that register or leave during the walk may or may not be seen.
+     */
+    public void forEach(Consumer<ClientHandler> action) {
+        slots.forEach(action);
+    }
+
+    /**
+     * @return The number of registered clients.
+     */
+    public int size() {
+        return slots.size();
+    }
+}
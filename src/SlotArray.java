@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/*
+ * A growable array of items where every item keeps the slot it was added at,
+ * and slots of removed items are handed out again. Adding and removing are
+ * O(1) and walking the items is a plain array scan, which makes it a good fit
+ * for fan-out: the session registry and every chat room keep their clients
+ * in one.
+ *
+ * Reads (get, forEach, size) need no lock. Changes are not thread safe on
+ * their own, the owner must make them while holding its own lock.
+ *
+ * forEach doesn't walk the slots themselves but a dense copy of the items
+ * that is rebuilt by the first walk after a change (copy-on-write, with the
+ * copy made lazily so a burst of joins costs one rebuild, not one per join).
+ * A walk is then a plain array loop with no holes, no locking and no
+ * volatile read per item, and the copy is shared by every walk until the
+ * next change.
+ */
+public class SlotArray<T> {
+    //Replaced (never shrunk) when it fills up
+    private volatile AtomicReferenceArray<T> slots;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    //Slots from here on have never been used
+    private volatile int highWater;
+    private volatile int size;
+    //Bumped after every change, a snapshot is only used while it matches
+    private volatile int version;
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param capacity The number of slots to start with.
+     * @param firstSlot The first slot to hand out, lower slots are never used.
+     */
+    public SlotArray(int capacity, int firstSlot) {
+        this.slots = new AtomicReferenceArray<>(Math.max(capacity, firstSlot + 1));
+        this.highWater = firstSlot;
+    }
+
+    /**
+     * Picks a slot for a new item without filling it yet, so the owner can
+     * prepare the item (for example give it an id) before readers can see it.
+     * @return The slot, to be filled with set().
+     */
+    public int reserve() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        int slot = highWater;
+        if (slot == slots.length()) {
+            AtomicReferenceArray<T> current = slots;
+            AtomicReferenceArray<T> bigger = new AtomicReferenceArray<>(current.length() * 2);
+            for (int i = 0; i < current.length(); i++) {
+                bigger.set(i, current.get(i));
+            }
+            slots = bigger;
+        }
+        highWater = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Fills a reserved slot, after this readers can see the item.
+     */
+    public void set(int slot, T item) {
+        slots.set(slot, item);
+        size++;
+        version++;
+    }
+
+    /**
+     * Adds an item at a free slot.
+     * @return The slot the item was put in.
+     */
+    public int add(T item) {
+        int slot = reserve();
+        set(slot, item);
+        return slot;
+    }
+
+    /**
+     * Removes an item and frees its slot.
+     * @param slot The slot the item was added at.
+     * @param item The item, nothing happens if the slot holds something else.
+     * @return true if the item was removed.
+     */
+    public boolean remove(int slot, T item) {
+        AtomicReferenceArray<T> current = slots;
+        if (slot < 0 || slot >= current.length() || current.get(slot) != item) {
+            return false;
+        }
+        current.set(slot, null);
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        size--;
+        version++;
+        return true;
+    }
+
+    /**
+     * @return The item in a slot, or null.
+     */
+    public T get(int slot) {
+        AtomicReferenceArray<T> current = slots;
+        return slot >= 0 && slot < current.length() ? current.get(slot) : null;
+    }
+
+    /**
+     * Runs an action for every item. Items added or removed during the walk
+     * may or may not be seen.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<T> action) {
+        Object[] items = snapshot();
+        for (Object item : items) {
+            action.accept((T) item);
+        }
+    }
+
+    /**
+     * @return The items as a dense array, shared until the next change so it
+     *         must not be modified.
+     */
+    private Object[] snapshot() {
+        Snapshot current = snapshot;
+        //Read before the slots, so a change made after this makes the new copy stale instead of lost
+        int now = version;
+        if (current != null && current.version == now) {
+            return current.items;
+        }
+        AtomicReferenceArray<T> array = slots;
+        int limit = Math.min(highWater, array.length());
+        Object[] items = new Object[limit];
+        int count = 0;
+        for (int slot = 0; slot < limit; slot++) {
+            T item = array.get(slot);
+            if (item != null) {
+                items[count++] = item;
+            }
+        }
+        items = count == limit ? items : Arrays.copyOf(items, count);
+        //Two walkers may both rebuild after a change, either copy will do
+        snapshot = new Snapshot(now, items);
+        return items;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * The dense copy of the items and the version it was made at.
+     */
+    private static final class Snapshot {
+        final int version;
+        final Object[] items;
+
+        Snapshot(int version, Object[] items) {
+            this.version = version;
+            this.items = items;
+        }
+    }
+}
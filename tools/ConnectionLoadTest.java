@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Load test for the different server modes. For every mode it starts a Server
+ * in its own process, logs in a number of idle clients and then reports how many
+ * connections the server is holding, how many threads it needed and how much
+ * memory each connection costs (resident set size, read from /proc on Linux).
+ *
+ * Usage: java ConnectionLoadTest [clients] [mode ...]
+ * where mode is one of blocking, virtual or nio (all three by default).
+ */
+public class ConnectionLoadTest {
+    private static final int PORT = 1234;
+    private static final byte[] ACCEPTED = "Username accepted.".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> modes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            modes.add(args[i]);
+        }
+        if (modes.isEmpty()) {
+            modes.add("blocking");
+            modes.add("virtual");
+            modes.add("nio");
+        }
+
+        System.out.printf("%-10s %12s %10s %12s %14s%n", "mode", "connections", "threads", "rss (MB)", "KB/connection");
+        for (String mode : modes) {
+            run(mode, clients);
+        }
+    }
+
+    /**
+     * Starts a server in the given mode, connects the clients and prints one line of results.
+     */
+    private static void run(String mode, int clients) throws Exception {
+        Process server = startServer(mode);
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            waitForPort();
+            Thread.sleep(1000);
+            long baseRss = readStatus(server.pid(), "VmRSS:");
+
+            //Connect in batches and keep draining in between, every login makes the server talk to everyone
+            int accepted = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+                channel.write(ByteBuffer.wrap(("load" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new boolean[1]);
+                channels.add(channel);
+                if (i % 100 == 99) {
+                    accepted += drain(selector, buffer, 10);
+                }
+            }
+            long deadline = System.currentTimeMillis() + 30000;
+            while (accepted < clients && System.currentTimeMillis() < deadline) {
+                accepted += drain(selector, buffer, 100);
+            }
+            //Let the server settle and flush whatever is still in flight
+            long settle = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < settle) {
+                drain(selector, buffer, 100);
+            }
+
+            long rss = readStatus(server.pid(), "VmRSS:");
+            long threads = readStatus(server.pid(), "Threads:");
+            String perConnection = rss < 0 || accepted == 0 ? "n/a"
+                    : String.format("%.1f", (rss - baseRss) / (double) accepted);
+            System.out.printf("%-10s %12d %10s %12s %14s%n", mode, accepted,
+                    threads < 0 ? "n/a" : String.valueOf(threads),
+                    rss < 0 ? "n/a" : String.format("%.1f", rss / 1024.0), perConnection);
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            selector.close();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Reads and throws away everything the server sent, counting the clients
+     * whose first line was "Username accepted.".
+     */
+    private static int drain(Selector selector, ByteBuffer buffer, long timeout) throws IOException {
+        int accepted = 0;
+        selector.select(timeout);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            buffer.clear();
+            if (((SocketChannel) key.channel()).read(buffer) == -1) {
+                key.cancel();
+                continue;
+            }
+            boolean[] seen = (boolean[]) key.attachment();
+            if (!seen[0] && buffer.position() >= ACCEPTED.length) {
+                seen[0] = true;
+                buffer.flip();
+                byte[] start = new byte[ACCEPTED.length];
+                buffer.get(start);
+                if (Arrays.equals(start, ACCEPTED)) {
+                    accepted++;
+                }
+            }
+        }
+        return accepted;
+    }
+
+    private static Process startServer(String mode) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Server");
+        if (!mode.equals("blocking")) {
+            command.add(mode);
+        }
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        return builder.start();
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket("localhost", PORT)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+
+    /**
+     * Reads a numeric field (in kB for memory fields) from /proc/<pid>/status.
+     * @return the value, or -1 if it is not available on this platform.
+     */
+    private static long readStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //Not on Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Headless load generator. It logs in a number of simulated users the way
+ * Client does (the binary protocol by default, the text protocol with
+ * --text), ramping up to all of them over a given time, and then sends a
+ * mix of group messages and whispers at a fixed total rate from random
+ * users. Every message carries the time it was meant to be sent, and every
+ * user that receives one records how long it took, so the report shows the
+ * end-to-end latency (send, server, fan-out, receive) as percentiles.
+ *
+ * Latency is measured from when a message was scheduled, not from when it
+ * was actually written, so if the server pushes back and the sender falls
+ * behind, the wait shows up in the latency instead of just lowering the
+ * rate. Every user has its own virtual thread reading from its socket, and
+ * latencies go into the server's lock-free Histogram.
+ *
+ * Usage: java LoadGenerator [--host localhost] [--port 1234] [--users 1000]
+ *        [--ramp seconds] [--duration seconds] [--rate messages/s]
+ *        [--whispers fraction] [--text]
+ */
+public class LoadGenerator {
+    //Marks the messages of this tool, followed by the run id and the scheduled send time
+    private static final String MARK = "load ";
+
+    private static String host = "localhost";
+    private static int port = 1234;
+    private static int users = 1000;
+    private static int rampSeconds = 10;
+    private static int durationSeconds = 30;
+    private static int rate = 200;
+    private static double whispers = 0.2;
+    private static boolean text;
+
+    //Messages from an earlier run (replayed as history) have another run id and are ignored
+    private static final String RUN = MARK + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + " ";
+    private static final Histogram groupLatency = new Histogram();
+    private static final Histogram whisperLatency = new Histogram();
+    private static final LongAdder sentGroup = new LongAdder();
+    private static final LongAdder sentWhispers = new LongAdder();
+    private static final LongAdder failedLogins = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    //Users that are logged in, filled in the order they got in
+    private static User[] ready;
+    private static final AtomicInteger readyCount = new AtomicInteger();
+    private static volatile boolean running = true;
+
+    /*
+     * One simulated user.
+     */
+    private static final class User {
+        final String name;
+        Socket socket;
+        OutputStream out;
+        //Session id from the server, used to whisper to this user in the binary protocol
+        int id;
+        //Messages scheduled before this were sent before the user logged in
+        long loginNanos;
+
+        User(String name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--users" -> users = Integer.parseInt(args[++i]);
+                case "--ramp" -> rampSeconds = Integer.parseInt(args[++i]);
+                case "--duration" -> durationSeconds = Integer.parseInt(args[++i]);
+                case "--rate" -> rate = Integer.parseInt(args[++i]);
+                case "--whispers" -> whispers = Double.parseDouble(args[++i]);
+                case "--text" -> text = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        ready = new User[users];
+        System.out.printf("%d users over %d s, %d messages/s (%.0f%% whispers) for %d s, %s protocol, %s:%d%n",
+                users, rampSeconds, rate, whispers * 100, durationSeconds, text ? "text" : "binary", host, port);
+
+        long start = System.nanoTime();
+        Thread ramp = Thread.ofPlatform().start(() -> ramp(start));
+        Thread sender = Thread.ofPlatform().start(() -> send(start));
+        long end = start + (rampSeconds + durationSeconds) * 1_000_000_000L;
+        while (System.nanoTime() < end) {
+            Thread.sleep(1000);
+            long elapsed = (System.nanoTime() - start) / 1_000_000_000L;
+            System.out.printf("%3d s  users %d/%d  sent %d  received %d  p99 group %s  p99 whisper %s%n", elapsed,
+                    readyCount.get(), users, sentGroup.sum() + sentWhispers.sum(),
+                    groupLatency.count() + whisperLatency.count(),
+                    millis(groupLatency.percentile(99)), millis(whisperLatency.percentile(99)));
+        }
+        running = false;
+        ramp.join();
+        sender.join();
+        //Let messages that are still in flight arrive
+        Thread.sleep(2000);
+        for (int i = 0; i < readyCount.get(); i++) {
+            if (ready[i] != null) {
+                ready[i].socket.close();
+            }
+        }
+        report();
+    }
+
+    /**
+     * Logs the users in one by one, spread evenly over the ramp time.
+     */
+    private static void ramp(long start) {
+        for (int i = 0; i < users && running; i++) {
+            sleepUntil(start + (long) i * rampSeconds * 1_000_000_000L / users);
+            User user = new User("load" + i);
+            Thread.ofVirtual().start(() -> connect(user));
+        }
+    }
+
+    /**
+     * Connects and logs in one user, then reads from its socket until the
+     * connection closes.
+     */
+    private static void connect(User user) {
+        try {
+            user.socket = new Socket();
+            user.socket.setTcpNoDelay(true);
+            user.socket.connect(new InetSocketAddress(host, port));
+            user.out = user.socket.getOutputStream();
+            InputStream in = user.socket.getInputStream();
+            if (text) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                user.out.write((user.name + "\n").getBytes(StandardCharsets.UTF_8));
+                if (!"Username accepted.".equals(reader.readLine())) {
+                    failedLogins.increment();
+                    user.socket.close();
+                    return;
+                }
+                loggedIn(user);
+                readLines(user, reader);
+            } else {
+                DataInputStream data = new DataInputStream(in);
+                byte[] name = user.name.getBytes(StandardCharsets.UTF_8);
+                user.out.write(new byte[] {(byte) Protocol.MAGIC, Protocol.VERSION});
+                user.out.write(Protocol.encode(Protocol.LOGIN, 0, 0, null, name, 0, name.length));
+                if (data.readUnsignedByte() != Protocol.MAGIC || data.readUnsignedByte() != Protocol.VERSION) {
+                    throw new IOException("Not a binary protocol server");
+                }
+                Protocol.Inbound frame = new Protocol.Inbound();
+                frame.read(data);
+                if (frame.type != Protocol.LOGIN_RESULT || frame.recipient == 0) {
+                    failedLogins.increment();
+                    user.socket.close();
+                    return;
+                }
+                user.id = frame.recipient;
+                loggedIn(user);
+                readFrames(user, data, frame);
+            }
+        } catch (IOException e) {
+            if (running) {
+                disconnects.increment();
+            }
+        }
+    }
+
+    private static void loggedIn(User user) {
+        user.loginNanos = System.nanoTime();
+        ready[readyCount.getAndIncrement()] = user;
+    }
+
+    private static void readLines(User user, BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            received(user, line, line.startsWith("Whisper from "));
+        }
+    }
+
+    private static void readFrames(User user, DataInputStream in, Protocol.Inbound frame) throws IOException {
+        while (true) {
+            frame.read(in);
+            if (frame.type == Protocol.GROUP || frame.type == Protocol.WHISPER) {
+                //The payload starts with the sender's name, the mark is found after it
+                String payload = new String(frame.buffer, frame.payloadOffset, frame.payloadLength, StandardCharsets.UTF_8);
+                received(user, payload, frame.type == Protocol.WHISPER);
+            } else if (frame.type == Protocol.TERMINATE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the latency of a message if it is one of this run's and was
+     * sent after the user logged in.
+     */
+    private static void received(User user, String message, boolean whisper) {
+        int mark = message.indexOf(RUN);
+        if (mark < 0) {
+            return;
+        }
+        int end = message.indexOf(' ', mark + RUN.length());
+        long scheduled = Long.parseLong(message.substring(mark + RUN.length(), end < 0 ? message.length() : end));
+        if (scheduled >= user.loginNanos) {
+            (whisper ? whisperLatency : groupLatency).record((System.nanoTime() - scheduled) / 1000);
+        }
+    }
+
+    /**
+     * Sends the messages on a fixed schedule, each from a random logged in
+     * user. A whisper goes to another random logged in user.
+     */
+    private static void send(long start) {
+        long interval = 1_000_000_000L / rate;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long next = start; running; next += interval) {
+            sleepUntil(next);
+            int count = readyCount.get();
+            User from = count < 2 ? null : ready[random.nextInt(count)];
+            User to = count < 2 ? null : ready[random.nextInt(count)];
+            if (from == null || to == null || from == to) {
+                continue;
+            }
+            String message = RUN + next;
+            try {
+                if (random.nextDouble() < whispers) {
+                    whisper(from, to, message);
+                    sentWhispers.increment();
+                } else {
+                    groupMessage(from, message);
+                    sentGroup.increment();
+                }
+            } catch (IOException e) {
+                disconnects.increment();
+            }
+        }
+    }
+
+    private static void groupMessage(User from, String message) throws IOException {
+        if (text) {
+            from.out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            from.out.write(Protocol.encode(Protocol.CHAT, 0, 0, null, payload, 0, payload.length));
+        }
+    }
+
+    private static void whisper(User from, User to, String message) throws IOException {
+        if (text) {
+            from.out.write(("@" + to.name + " " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            from.out.write(Protocol.encode(Protocol.WHISPER, 0, to.id, null, payload, 0, payload.length));
+        }
+    }
+
+    private static void report() {
+        System.out.println();
+        System.out.printf("Logged in %d of %d users, %d logins refused, %d connections lost%n",
+                readyCount.get(), users, failedLogins.sum(), disconnects.sum());
+        System.out.printf("Sent %d group messages and %d whispers%n", sentGroup.sum(), sentWhispers.sum());
+        System.out.printf("%-9s %12s %10s %10s %10s %10s %10s%n", "latency", "received", "p50 ms", "p90 ms",
+                "p99 ms", "p99.9 ms", "max ms");
+        for (int i = 0; i < 2; i++) {
+            Histogram histogram = i == 0 ? groupLatency : whisperLatency;
+            System.out.printf("%-9s %12d %10s %10s %10s %10s %10s%n", i == 0 ? "group" : "whisper",
+                    histogram.count(), millis(histogram.percentile(50)), millis(histogram.percentile(90)),
+                    millis(histogram.percentile(99)), millis(histogram.percentile(99.9)),
+                    millis(histogram.percentile(100)));
+        }
+    }
+
+    private static String millis(long micros) {
+        return micros < 0 ? "-" : String.format("%.3f", micros / 1000.0);
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait = nanos - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
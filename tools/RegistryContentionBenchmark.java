@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Contention benchmark for the client registry. Some threads keep logging
+ * clients out and in again while others keep fanning a message out to every
+ * client, and the benchmark reports how many joins/leaves and fan-outs each
+ * registry manages at the same time.
+ *
+ * "monitor" is how the server used to do it: a ConcurrentHashMap of
+ * username to client, joins and leaves in synchronized (map) and fan-out
+ * iterating the map's values. "slots" is the server's registry today: a
+ * SlotArray changed under a ReentrantLock, with fan-out walking its dense
+ * copy-on-write snapshot.
+ *
+ * Usage: java RegistryContentionBenchmark [clients] [broadcasters] [churners] [seconds]
+ */
+public class RegistryContentionBenchmark {
+
+    /*
+     * Stands in for a ClientHandler, fan-out reads its id like groupChat does.
+     */
+    private static final class Client {
+        final int id;
+
+        Client(int id) {
+            this.id = id;
+        }
+    }
+
+    /*
+     * The three operations the server does on its registry.
+     */
+    private interface Registry {
+        //Returns whatever leave needs to find the client again
+        Object join(String name, Client client);
+
+        void leave(String name, Client client, Object token);
+
+        //Returns the sum of the ids of the clients visited, so the walk can't be optimized away
+        long fanOut();
+    }
+
+    private static final class MonitorRegistry implements Registry {
+        private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+
+        public Object join(String name, Client client) {
+            synchronized (clients) {
+                clients.put(name, client);
+            }
+            return null;
+        }
+
+        public void leave(String name, Client client, Object token) {
+            synchronized (clients) {
+                clients.remove(name, client);
+            }
+        }
+
+        public long fanOut() {
+            long sum = 0;
+            for (Client client : clients.values()) {
+                sum += client.id;
+            }
+            return sum;
+        }
+    }
+
+    private static final class SlotRegistry implements Registry {
+        private final SlotArray<Client> clients = new SlotArray<>(64, 1);
+        private final ReentrantLock lock = new ReentrantLock();
+
+        public Object join(String name, Client client) {
+            lock.lock();
+            try {
+                return clients.add(client);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void leave(String name, Client client, Object token) {
+            lock.lock();
+            try {
+                clients.remove((Integer) token, client);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long fanOut() {
+            long[] sum = new long[1];
+            clients.forEach(client -> sum[0] += client.id);
+            return sum[0];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int broadcasters = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int churners = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        System.out.printf("%d clients, %d fan-out threads, %d join/leave threads, %d s per run%n",
+                clients, broadcasters, churners, seconds);
+        System.out.printf("%-10s %16s %14s %18s%n", "registry", "joins+leaves/s", "fan-outs/s", "clients visited/s");
+        //The first round only warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run("monitor", new MonitorRegistry(), clients, broadcasters, churners, print ? seconds : 1, print);
+            run("slots", new SlotRegistry(), clients, broadcasters, churners, print ? seconds : 1, print);
+        }
+    }
+
+    private static void run(String label, Registry registry, int clients, int broadcasters, int churners,
+            int seconds, boolean print) throws InterruptedException {
+        String[] names = new String[clients];
+        Client[] handlers = new Client[clients];
+        Object[] tokens = new Object[clients];
+        for (int i = 0; i < clients; i++) {
+            names[i] = "user" + i;
+            handlers[i] = new Client(i + 1);
+            tokens[i] = registry.join(names[i], handlers[i]);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder changes = new LongAdder();
+        LongAdder fanOuts = new LongAdder();
+        LongAdder sink = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < churners; t++) {
+            int first = t;
+            //Every churner owns its own clients, so no two touch the same one
+            threads.add(new Thread(() -> {
+                await(start);
+                long done = 0;
+                for (int i = first; running.get(); i += churners) {
+                    if (i >= clients) {
+                        i = first;
+                    }
+                    registry.leave(names[i], handlers[i], tokens[i]);
+                    tokens[i] = registry.join(names[i], handlers[i]);
+                    done += 2;
+                }
+                changes.add(done);
+            }));
+        }
+        for (int t = 0; t < broadcasters; t++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                long done = 0;
+                long sum = 0;
+                while (running.get()) {
+                    sum += registry.fanOut();
+                    done++;
+                }
+                fanOuts.add(done);
+                sink.add(sum);
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (print) {
+            //Every client is online apart from the few a churner has just taken out
+            System.out.printf("%-10s %16.0f %14.0f %18.0f%n", label, changes.sum() / (double) seconds,
+                    fanOuts.sum() / (double) seconds, fanOuts.sum() * (double) clients / seconds);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}